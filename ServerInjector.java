@@ -10,10 +10,15 @@ public class ServerInjector {
       System.out.println(args[0]);
       System.out.println(args[1]);
 
+      // Number of tokens to put in the ring, one per calculator server
+      int tokens = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
       Socket firstMachineSocket = new Socket(InetAddress.getByName(args[0]), Integer.valueOf(args[1]));
 
       PrintWriter out = new PrintWriter(firstMachineSocket.getOutputStream(), true);
-      out.println("");
+      for (int i = 0; i < tokens; i++) {
+        out.println("TOKEN:" + i + ":0:0");
+      }
       out.flush();
       Thread.sleep(1 * 1000);
     } catch (Exception e) {
@@ -1,8 +1,6 @@
 package ds.assign.chat;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -23,6 +21,9 @@ import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import ds.common.LatencyHistogram;
+import ds.common.Lexicon;
+import ds.common.Metrics;
 import poisson.PoissonProcess;
 
 /**
@@ -85,7 +86,7 @@ class LamportMessage implements Comparable<LamportMessage>, Serializable {
 public class Peer {
     public static int WORD_LAMBDA; // How many words we generate (on average) per minute
     public static String WORD_FILE; // File with the words we want to print
-    public static ArrayList<String> WORDS_ARRAY; // Represents the same file as WORD_FILE, however, it's we can access a
+    public static Lexicon LEXICON; // Represents the same file as WORD_FILE, memory-mapped so we can access a
     // random word in O(1)
     public static ArrayList<Pair<String, Integer>> TARGETS; // Machines we are currently connected to
     public static HashMap<String, Pair<String, Integer>> MACHINE_TO_IP; // Dictionary to translate the machine name to a
@@ -99,6 +100,13 @@ public class Peer {
     public static String HOST; // Our current host name
     public static int PORT; // Our current port number
     public static int TIME_TO_WAIT;
+    public static int METRICS_PORT = 0; // Base port of the metrics endpoint, none when 0
+
+    public static final Metrics.Counter CONNECTIONS = Metrics.Counter("chat.connections.accepted");
+    public static final Metrics.Counter BYTES_IN = Metrics.Counter("chat.bytes.in");
+    public static final Metrics.Counter BYTES_OUT = Metrics.Counter("chat.bytes.out");
+    public static final Metrics.Counter DELIVERED = Metrics.Counter("chat.messages.delivered");
+    public static final LatencyHistogram BROADCAST_TIME = Metrics.Histogram("chat.broadcast.ns");
 
     Logger logger;
 
@@ -137,18 +145,16 @@ public class Peer {
         WORD_LAMBDA = Integer.parseInt(prop.getProperty("WORD_LAMBDA"));
         WORD_FILE = prop.getProperty("WORD_FILE");
         TIME_TO_WAIT = Integer.parseInt(prop.getProperty("TIME_TO_WAIT"));
+        METRICS_PORT = Integer.parseInt(prop.getProperty("METRICS_PORT", "0"));
     }
 
     /**
-     * Reads the file stored in WORD_FILE and then places its trimmed contents into
-     * the WORDS_ARRAY
+     * Maps the file stored in WORD_FILE into the LEXICON, its trimmed lines are
+     * only read when used
      */
     public static void SetupWords() {
-        try (BufferedReader br = new BufferedReader(new FileReader(WORD_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                WORDS_ARRAY.add(line.trim());
-            }
+        try {
+            LEXICON = Lexicon.Open(WORD_FILE);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -167,7 +173,6 @@ public class Peer {
             TARGETS.add(MACHINE_TO_IP.get(args[i]));
         }
 
-        WORDS_ARRAY = new ArrayList<>();
         SetupWords();
 
         // QUEUE_LOCK = new ReentrantLock();
@@ -181,6 +186,8 @@ public class Peer {
         System.out.printf("new peer @ host=%s\n", args[0]);
 
         MESSAGE_QUEUE = new ConcurrentSkipListSet<>();
+        Metrics.Gauge("chat.message_queue", () -> MESSAGE_QUEUE.size());
+        Metrics.Expose("chat-" + args[0], METRICS_PORT == 0 ? 0 : METRICS_PORT + PORT % 10);
 
         new Thread(new Server(HOST, PORT, peer.logger)).start();
 
@@ -213,6 +220,7 @@ class Server implements Runnable {
             while (true) {
                 try {
                     Socket client = server.accept();
+                    Peer.CONNECTIONS.increment();
                     String clientAddress = client.getInetAddress().getHostAddress();
 
                     new Thread(new Connection(clientAddress, client, logger)).start();
@@ -229,13 +237,18 @@ class Server implements Runnable {
      * @param message Message to be sent to all the peers connected to this node
      */
     public static void BroadcastToConnectedPeers(LamportMessage message) throws Exception {
-        for (Pair<String, Integer> target : Peer.TARGETS) {
-            Socket peerSocket = new Socket(InetAddress.getByName(target.getKey()), target.getValue());
+        long start = System.nanoTime();
+        try {
+            for (Pair<String, Integer> target : Peer.TARGETS) {
+                Socket peerSocket = new Socket(InetAddress.getByName(target.getKey()), target.getValue());
 
-            OutputStream outputStream = peerSocket.getOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-            objectOutputStream.writeObject(message);
-            peerSocket.close();
+                OutputStream outputStream = Metrics.Counted(peerSocket.getOutputStream(), Peer.BYTES_OUT);
+                ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+                objectOutputStream.writeObject(message);
+                peerSocket.close();
+            }
+        } finally {
+            Peer.BROADCAST_TIME.recordSince(start);
         }
     }
 }
@@ -258,7 +271,7 @@ class Connection implements Runnable {
     @Override
     public void run() {
         try {
-            InputStream inputStream = clientSocket.getInputStream();
+            InputStream inputStream = Metrics.Counted(clientSocket.getInputStream(), Peer.BYTES_IN);
             ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
 
             LamportMessage message_gotten = (LamportMessage) objectInputStream.readObject();
@@ -277,6 +290,7 @@ class Connection implements Runnable {
                 LamportMessage message = Peer.MESSAGE_QUEUE.pollFirst();
                 if (!message.isAck) {
                     Peer.CLOCK.incrementAndGet();
+                    Peer.DELIVERED.increment();
                     System.out.println(message.message);
                 }
             }
@@ -315,7 +329,7 @@ class WordGenerator implements Runnable {
     @Override
     public void run() {
         while (true) {
-            String word = Peer.WORDS_ARRAY.get(random.nextInt(Peer.WORDS_ARRAY.size()));
+            String word = Peer.LEXICON.get(random.nextInt(Peer.LEXICON.size()));
 
             // Send message with the word, including to ourselves
             Peer.CLOCK.incrementAndGet();
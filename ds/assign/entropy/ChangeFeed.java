@@ -0,0 +1,62 @@
+package ds.assign.entropy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints what changed in the word set instead of the whole set: every
+ * FEED_INTERVAL ms, the words added since the last print (at most
+ * FEED_MAX_WORDS of them) and how much the set grew. Nothing is printed while
+ * the set doesn't change
+ */
+class ChangeFeed implements WordListener, Runnable {
+  long interval; // ms
+  int maxWords;
+
+  private final List<String> pending = new ArrayList<>();
+  private int added = 0;
+  private int size = 0;
+
+  public ChangeFeed(long interval, int maxWords) {
+    this.interval = interval;
+    this.maxWords = maxWords;
+  }
+
+  @Override
+  public synchronized void wordsAdded(List<String> words, int size) {
+    for (String word : words) {
+      if (pending.size() < maxWords)
+        pending.add(word);
+    }
+    added += words.size();
+    this.size = Math.max(this.size, size);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      String line;
+      synchronized (this) {
+        if (added == 0)
+          continue;
+        StringBuilder builder = new StringBuilder();
+        builder.append("[+").append(added).append(" words, ").append(size).append(" total]");
+        for (String word : pending)
+          builder.append(' ').append(word);
+        if (added > pending.size())
+          builder.append(" ... (").append(added - pending.size()).append(" more)");
+        line = builder.toString();
+
+        pending.clear();
+        added = 0;
+      }
+      System.out.println(line);
+    }
+  }
+}
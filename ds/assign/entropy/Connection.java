@@ -0,0 +1,106 @@
+package ds.assign.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+import ds.common.Metrics;
+
+/**
+ * Represents a connection with another peer. This class is called whenever
+ * another peer connects to us via the Server class. A multiplexed connection
+ * (see MuxConnection) stays open and serves every exchange the other peer
+ * starts on it; otherwise the socket carries a single exchange
+ */
+class Connection implements Runnable {
+  String clientAddress;
+  Socket clientSocket;
+  Logger logger;
+  ExecutorService handlers;
+
+  public Connection(String clientAddress, Socket clientSocket, Logger logger, ExecutorService handlers) {
+    this.clientAddress = clientAddress;
+    this.clientSocket = clientSocket;
+    this.logger = logger;
+    this.handlers = handlers;
+    Peer.CONN_COUNT.increment();
+  }
+
+  @Override
+  public void run() {
+    try {
+      /*
+       * prepare socket I/O channels
+       */
+      InputStream inputStream = new BufferedInputStream(Metrics.Counted(clientSocket.getInputStream(), Peer.BYTES_IN));
+      inputStream.mark(1);
+      if (inputStream.read() == MuxConnection.MAGIC) {
+        new MuxConnection(clientSocket, inputStream, handlers).run();
+        return;
+      }
+      inputStream.reset();
+
+      clientSocket.setSoTimeout(Peer.EXCHANGE_TIMEOUT);
+      Serve(inputStream, Metrics.Counted(clientSocket.getOutputStream(), Peer.BYTES_OUT));
+      /*
+       * close connection
+       */
+      clientSocket.close();
+
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Answers a single exchange
+   */
+  public static void Serve(InputStream inputStream, OutputStream outputStream) throws IOException {
+    if (!inputStream.markSupported())
+      inputStream = new BufferedInputStream(inputStream);
+    DataInputStream in = new DataInputStream(inputStream);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+
+    long start = System.nanoTime();
+    try {
+      /*
+       * merkle, iblt, rumor and version exchanges start with their own byte,
+       * anything else is a whole set
+       */
+      inputStream.mark(1);
+      int magic = inputStream.read();
+      if (magic == MerkleExchange.MAGIC) {
+        MerkleExchange.Respond(in, out);
+        return;
+      }
+      if (magic == IbltExchange.MAGIC) {
+        IbltExchange.Respond(in, out);
+        return;
+      }
+      if (magic == RumorMonger.MAGIC) {
+        RumorMonger.Respond(in, out);
+        return;
+      }
+      if (magic == VersionExchange.MAGIC) {
+        VersionExchange.Respond(in, out);
+        return;
+      }
+      inputStream.reset();
+      List<String> set_gotten = WordSetCodec.Read(in);
+
+      Peer.AddWords(set_gotten);
+      WordSetCodec.Write(out, Peer.words.snapshot(), Peer.WORD_COMPRESSION);
+      out.flush();
+    } finally {
+      Peer.SERVE_TIME.recordSince(start);
+    }
+  }
+}
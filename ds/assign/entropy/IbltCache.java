@@ -0,0 +1,67 @@
+package ds.assign.entropy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * InvertibleBloomFilters of the word set, one per size that exchanges asked
+ * for. A new word is added to every table, like to the MerkleTree, so an
+ * IbltExchange only copies a table instead of hashing the whole set; a table is
+ * built from the set once, the first time its size is asked for. The MAX_SIZES
+ * sizes asked for most recently are kept. Guarded by Peer.word_lock
+ */
+class IbltCache {
+  public static final int MAX_SIZES = 8;
+
+  final WordSet set;
+  final Map<Integer, InvertibleBloomFilter> tables = new LinkedHashMap<Integer, InvertibleBloomFilter>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, InvertibleBloomFilter> eldest) {
+      return size() > MAX_SIZES;
+    }
+  };
+
+  public IbltCache(WordSet set) {
+    this.set = set;
+  }
+
+  /**
+   * @return The smallest table size of at least cells that initiators use: a
+   *         power of two times HASHES, so that only a few sizes get cached
+   */
+  public static int Cells(int cells) {
+    int size = InvertibleBloomFilter.HASHES;
+    while (size < cells)
+      size *= 2;
+    return size;
+  }
+
+  /**
+   * Accounts for a word that was just added to the set
+   *
+   * @param hash Its MerkleTree.Hash(word)
+   */
+  public void add(long hash) {
+    for (InvertibleBloomFilter table : tables.values())
+      table.add(hash);
+  }
+
+  /**
+   * @return A copy of the table of the given size (rounded up to a multiple of
+   *         HASHES) holding the hash of every word in the set
+   */
+  public InvertibleBloomFilter table(int cells) {
+    InvertibleBloomFilter table = new InvertibleBloomFilter(cells);
+    InvertibleBloomFilter cached = tables.get(table.size());
+    if (cached == null) {
+      for (String word : set.snapshot())
+        table.add(MerkleTree.Hash(word));
+      tables.put(table.size(), table.copy());
+      return table;
+    }
+    return cached.copy();
+  }
+}
@@ -0,0 +1,116 @@
+package ds.assign.entropy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Push-pull in a single round trip, for peers that are expected to differ by a
+ * few words only. The initiator sends an InvertibleBloomFilter of its word
+ * hashes; the responder subtracts its own, which lists exactly the words each
+ * side is missing, and answers with the words the initiator lacks plus the
+ * hashes of the ones it lacks itself, which the initiator then sends without
+ * waiting for anything else.
+ *
+ * When the table turns out to be too small for the difference, both sides go
+ * on with a MerkleExchange over the same connection
+ */
+class IbltExchange {
+  public static final byte MAGIC = 'I';
+  public static final int MAX_CELLS = 1 << 20;
+
+  /**
+   * Runs the initiator's side of the exchange
+   *
+   * @param cells Size of the table, about twice the expected difference (rounded
+   *              up to one of the IbltCache.Cells sizes)
+   * @return The number of words learned from the other peer, and the number of
+   *         words it learned from us
+   */
+  public static Pair<Integer, Integer> Initiate(DataInputStream in, DataOutputStream out, int cells)
+      throws IOException {
+    out.writeByte(MAGIC);
+    Table(IbltCache.Cells(cells)).write(out);
+    out.flush();
+
+    if (!in.readBoolean())
+      return MerkleExchange.Initiate(in, out);
+
+    int learned = Peer.AddWords(MerkleExchange.ReadWords(in));
+
+    int n = in.readInt();
+    List<String> missing = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      String word = Lookup(in.readLong());
+      if (word != null)
+        missing.add(word);
+    }
+    MerkleExchange.WriteWords(out, missing);
+    out.flush();
+    return new Pair<>(learned, missing.size());
+  }
+
+  /**
+   * Runs the responder's side of the exchange, after MAGIC was read
+   *
+   * @return The number of words learned from the other peer
+   */
+  public static int Respond(DataInputStream in, DataOutputStream out) throws IOException {
+    InvertibleBloomFilter theirs = InvertibleBloomFilter.Read(in, MAX_CELLS);
+    /* any other size would push the cached ones out and rebuild the table */
+    if (theirs.size() != IbltCache.Cells(theirs.size()))
+      throw new IOException("table of " + theirs.size() + " cells isn't one of the IbltCache sizes");
+    theirs.subtract(Table(theirs.size()));
+
+    InvertibleBloomFilter.LongList onlyTheirs = new InvertibleBloomFilter.LongList();
+    InvertibleBloomFilter.LongList onlyOurs = new InvertibleBloomFilter.LongList();
+    if (!theirs.decode(onlyTheirs, onlyOurs)) {
+      out.writeBoolean(false);
+      out.flush();
+      if (in.readByte() != MerkleExchange.MAGIC)
+        throw new IOException("expected a merkle exchange after a failed decode");
+      return MerkleExchange.Respond(in, out);
+    }
+    out.writeBoolean(true);
+
+    List<String> words = new ArrayList<>(onlyOurs.size);
+    for (int i = 0; i < onlyOurs.size; i++) {
+      String word = Lookup(onlyOurs.values[i]);
+      if (word != null)
+        words.add(word);
+    }
+    MerkleExchange.WriteWords(out, words);
+
+    out.writeInt(onlyTheirs.size);
+    for (int i = 0; i < onlyTheirs.size; i++)
+      out.writeLong(onlyTheirs.values[i]);
+    out.flush();
+
+    return Peer.AddWords(MerkleExchange.ReadWords(in));
+  }
+
+  /**
+   * @return A table of the given size holding the hash of every word we know
+   */
+  private static InvertibleBloomFilter Table(int cells) {
+    Peer.word_lock.lock();
+    try {
+      return Peer.tables.table(cells);
+    } finally {
+      Peer.word_lock.unlock();
+    }
+  }
+
+  /**
+   * @return The word we know with the given hash, if any
+   */
+  private static String Lookup(long hash) {
+    for (String word : MerkleExchange.LeafWords(MerkleTree.Leaf(hash))) {
+      if (MerkleTree.Hash(word) == hash)
+        return word;
+    }
+    return null;
+  }
+}
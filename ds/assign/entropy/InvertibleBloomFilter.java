@@ -0,0 +1,157 @@
+package ds.assign.entropy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Invertible Bloom lookup table over 64-bit word hashes. Subtracting the table
+ * of one set from the table of another leaves only the hashes that are in one
+ * of them but not in both, and those can be listed back as long as there are
+ * not many more of them than about half the number of cells.
+ *
+ * Every key goes to one cell in each of HASHES equal parts of the table; a cell
+ * keeps how many keys were added (minus removed), the XOR of those keys and the
+ * XOR of a checksum of each one, which tells when a cell is left with a single key
+ */
+class InvertibleBloomFilter {
+  public static final int HASHES = 3;
+
+  final int[] counts;
+  final long[] keys;
+  final long[] checks;
+
+  /**
+   * @param cells Number of cells, rounded up to a multiple of HASHES
+   */
+  public InvertibleBloomFilter(int cells) {
+    cells = (cells + HASHES - 1) / HASHES * HASHES;
+    counts = new int[cells];
+    keys = new long[cells];
+    checks = new long[cells];
+  }
+
+  public int size() {
+    return counts.length;
+  }
+
+  public void add(long key) {
+    update(key, 1);
+  }
+
+  /**
+   * @return A table holding the same keys
+   */
+  public InvertibleBloomFilter copy() {
+    InvertibleBloomFilter copy = new InvertibleBloomFilter(counts.length);
+    System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+    System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+    System.arraycopy(checks, 0, copy.checks, 0, checks.length);
+    return copy;
+  }
+
+  /**
+   * Subtracts the other table (of the same size) from this one
+   */
+  public void subtract(InvertibleBloomFilter other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] -= other.counts[i];
+      keys[i] ^= other.keys[i];
+      checks[i] ^= other.checks[i];
+    }
+  }
+
+  /**
+   * Lists the keys left in the table, emptying it
+   *
+   * @param added   Receives the keys with a positive count
+   * @param removed Receives the keys with a negative count
+   * @return Whether every key could be listed (otherwise the table was too
+   *         small for the difference)
+   */
+  public boolean decode(LongList added, LongList removed) {
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (int i = 0; i < counts.length; i++) {
+        if ((counts[i] == 1 || counts[i] == -1) && checks[i] == Check(keys[i])) {
+          long key = keys[i];
+          if (counts[i] == 1)
+            added.add(key);
+          else
+            removed.add(key);
+          update(key, -counts[i]);
+          progress = true;
+        }
+      }
+    }
+
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0 || keys[i] != 0 || checks[i] != 0)
+        return false;
+    }
+    return true;
+  }
+
+  private void update(long key, int delta) {
+    int part = counts.length / HASHES;
+    long check = Check(key);
+    for (int h = 0; h < HASHES; h++) {
+      int cell = h * part + (int) Long.remainderUnsigned(Mix(key + h * 0x9e3779b97f4a7c15L), part);
+      counts[cell] += delta;
+      keys[cell] ^= key;
+      checks[cell] ^= check;
+    }
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeInt(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      out.writeInt(counts[i]);
+      out.writeLong(keys[i]);
+      out.writeLong(checks[i]);
+    }
+  }
+
+  public static InvertibleBloomFilter Read(DataInputStream in, int maxCells) throws IOException {
+    int cells = in.readInt();
+    if (cells <= 0 || cells > maxCells || cells % HASHES != 0)
+      throw new IOException("bad table size: " + cells);
+
+    InvertibleBloomFilter table = new InvertibleBloomFilter(cells);
+    for (int i = 0; i < cells; i++) {
+      table.counts[i] = in.readInt();
+      table.keys[i] = in.readLong();
+      table.checks[i] = in.readLong();
+    }
+    return table;
+  }
+
+  private static long Check(long key) {
+    return Mix(key ^ 0x5851f42d4c957f2dL);
+  }
+
+  private static long Mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Growable list of longs
+   */
+  static class LongList {
+    long[] values = new long[16];
+    int size = 0;
+
+    void add(long value) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+  }
+}
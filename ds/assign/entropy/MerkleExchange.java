@@ -0,0 +1,175 @@
+package ds.assign.entropy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Push-pull that only ships the words the other peer is missing. Starting at
+ * the root of both MerkleTrees, the initiator sends the digests of a level, the
+ * responder answers which of them differ from its own, and both descend only
+ * into those. At the leaves, the initiator sends the words of the differing
+ * buckets and gets back the ones it didn't have. Peers that already agree stop
+ * after comparing the roots.
+ *
+ * Both sides know which nodes are being compared at each level (the children of
+ * the ones that differed), so node indices never go over the wire
+ */
+class MerkleExchange {
+  public static final byte MAGIC = 'M';
+
+  /**
+   * Runs the initiator's side of the exchange
+   *
+   * @return The number of words learned from the other peer, and the number of
+   *         words it learned from us
+   */
+  public static Pair<Integer, Integer> Initiate(DataInputStream in, DataOutputStream out) throws IOException {
+    out.writeByte(MAGIC);
+
+    int[] nodes = { 0 };
+    int[] leaves = {};
+    for (int level = 0; level <= MerkleTree.DEPTH && nodes.length > 0; level++) {
+      long[] digests = new long[nodes.length];
+      int[] counts = new int[nodes.length];
+      ReadDigests(level, nodes, digests, counts);
+
+      out.writeInt(nodes.length);
+      for (int i = 0; i < nodes.length; i++) {
+        out.writeLong(digests[i]);
+        out.writeInt(counts[i]);
+      }
+      out.flush();
+
+      boolean[] differ = new boolean[nodes.length];
+      for (int i = 0; i < nodes.length; i++)
+        differ[i] = in.readBoolean();
+
+      leaves = Differing(nodes, differ);
+      nodes = level < MerkleTree.DEPTH ? Children(leaves) : new int[0];
+    }
+    if (leaves.length == 0)
+      return new Pair<>(0, 0);
+
+    /*
+     * send our words of the differing buckets, get back the ones we lack
+     */
+    List<String> ours = new ArrayList<>();
+    for (int leaf : leaves)
+      ours.addAll(LeafWords(leaf));
+    WriteWords(out, ours);
+    out.flush();
+
+    int learned = Peer.AddWords(ReadWords(in));
+    return new Pair<>(learned, in.readInt());
+  }
+
+  /**
+   * Runs the responder's side of the exchange, after MAGIC was read
+   *
+   * @return The number of words learned from the other peer
+   */
+  public static int Respond(DataInputStream in, DataOutputStream out) throws IOException {
+    int[] nodes = { 0 };
+    int[] leaves = {};
+    for (int level = 0; level <= MerkleTree.DEPTH && nodes.length > 0; level++) {
+      int n = in.readInt();
+      if (n != nodes.length)
+        throw new IOException("expected " + nodes.length + " digests at level " + level + ", got " + n);
+
+      long[] digests = new long[n];
+      int[] counts = new int[n];
+      ReadDigests(level, nodes, digests, counts);
+
+      boolean[] differ = new boolean[n];
+      for (int i = 0; i < n; i++) {
+        long digest = in.readLong();
+        int count = in.readInt();
+        differ[i] = digest != digests[i] || count != counts[i];
+        out.writeBoolean(differ[i]);
+      }
+      out.flush();
+
+      leaves = Differing(nodes, differ);
+      nodes = level < MerkleTree.DEPTH ? Children(leaves) : new int[0];
+    }
+    if (leaves.length == 0)
+      return 0;
+
+    List<String> theirs = ReadWords(in);
+    int learned = Peer.AddWords(theirs);
+
+    Set<String> known = new HashSet<>(theirs);
+    List<String> missing = new ArrayList<>();
+    for (int leaf : leaves) {
+      for (String word : LeafWords(leaf)) {
+        if (!known.contains(word))
+          missing.add(word);
+      }
+    }
+    WriteWords(out, missing);
+    out.writeInt(learned);
+    out.flush();
+    return learned;
+  }
+
+  private static void ReadDigests(int level, int[] nodes, long[] digests, int[] counts) {
+    Peer.word_lock.lock();
+    try {
+      for (int i = 0; i < nodes.length; i++) {
+        digests[i] = Peer.digests.digest(level, nodes[i]);
+        counts[i] = Peer.digests.count(level, nodes[i]);
+      }
+    } finally {
+      Peer.word_lock.unlock();
+    }
+  }
+
+  static List<String> LeafWords(int leaf) {
+    Peer.word_lock.lock();
+    try {
+      return Peer.digests.words(leaf);
+    } finally {
+      Peer.word_lock.unlock();
+    }
+  }
+
+  private static int[] Differing(int[] nodes, boolean[] differ) {
+    int n = 0;
+    for (boolean d : differ) {
+      if (d)
+        n++;
+    }
+    int[] result = new int[n];
+    n = 0;
+    for (int i = 0; i < nodes.length; i++) {
+      if (differ[i])
+        result[n++] = nodes[i];
+    }
+    return result;
+  }
+
+  private static int[] Children(int[] nodes) {
+    int[] children = new int[nodes.length * MerkleTree.FANOUT];
+    for (int i = 0; i < children.length; i++)
+      children[i] = (nodes[i / MerkleTree.FANOUT] << MerkleTree.FANOUT_BITS) | (i % MerkleTree.FANOUT);
+    return children;
+  }
+
+  /**
+   * Sorts the words (so they share prefixes) and writes them as a word list
+   */
+  static void WriteWords(DataOutputStream out, List<String> words) throws IOException {
+    Collections.sort(words);
+    WordSetCodec.Write(out, words, Peer.WORD_COMPRESSION);
+  }
+
+  static List<String> ReadWords(DataInputStream in) throws IOException {
+    return WordSetCodec.Read(in);
+  }
+}
@@ -0,0 +1,113 @@
+package ds.assign.entropy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hash tree over the word set. Words are spread over LEAVES buckets by the top
+ * bits of their 64-bit hash, and every node keeps the XOR of the hashes below it
+ * and how many words that is. Since words are only ever added, a new word just
+ * XORs its hash into one node per level, so the tree never has to be rebuilt.
+ *
+ * Two peers holding the same words have the same root; otherwise only the
+ * buckets that differ need to be looked at (see MerkleExchange). The words of
+ * every bucket are kept encoded, like in the WordSet. Guarded by Peer.word_lock
+ */
+class MerkleTree {
+  public static final int FANOUT_BITS = 4;
+  public static final int FANOUT = 1 << FANOUT_BITS;
+  public static final int DEPTH = 3;
+  public static final int LEAVES = 1 << (FANOUT_BITS * DEPTH);
+
+  /*
+   * level 0 is the root, level DEPTH has the leaves
+   */
+  final long[][] digests = new long[DEPTH + 1][];
+  final int[][] counts = new int[DEPTH + 1][];
+  final WordSet set;
+  final int[][] leafCodes = new int[LEAVES][];
+  final int[] leafSizes = new int[LEAVES];
+  final List<List<String>> leafOthers = new ArrayList<>(LEAVES); // words that can't be encoded
+
+  public MerkleTree(WordSet set) {
+    this.set = set;
+    for (int level = 0; level <= DEPTH; level++) {
+      digests[level] = new long[1 << (FANOUT_BITS * level)];
+      counts[level] = new int[1 << (FANOUT_BITS * level)];
+    }
+    for (int i = 0; i < LEAVES; i++) {
+      leafCodes[i] = new int[4];
+      leafOthers.add(null);
+    }
+  }
+
+  /**
+   * Accounts for a word that was just added to the set (it must not be there
+   * already)
+   *
+   * @param code Its WordSet.encode(word)
+   * @param hash Its Hash(word)
+   */
+  public void add(String word, int code, long hash) {
+    int leaf = Leaf(hash);
+    for (int level = DEPTH; level >= 0; level--) {
+      int node = leaf >>> (FANOUT_BITS * (DEPTH - level));
+      digests[level][node] ^= hash;
+      counts[level][node]++;
+    }
+
+    if (code < 0) {
+      if (leafOthers.get(leaf) == null)
+        leafOthers.set(leaf, new ArrayList<>());
+      leafOthers.get(leaf).add(word);
+      return;
+    }
+    if (leafSizes[leaf] == leafCodes[leaf].length)
+      leafCodes[leaf] = Arrays.copyOf(leafCodes[leaf], leafSizes[leaf] * 2);
+    leafCodes[leaf][leafSizes[leaf]++] = code;
+  }
+
+  public long digest(int level, int node) {
+    return digests[level][node];
+  }
+
+  public int count(int level, int node) {
+    return counts[level][node];
+  }
+
+  /**
+   * @return A new list with the words of the leaf
+   */
+  public List<String> words(int leaf) {
+    List<String> others = leafOthers.get(leaf);
+    List<String> words = new ArrayList<>(counts[DEPTH][leaf]);
+    for (int i = 0; i < leafSizes[leaf]; i++)
+      words.add(set.decode(leafCodes[leaf][i]));
+    if (others != null)
+      words.addAll(others);
+    return words;
+  }
+
+  public static int Leaf(long hash) {
+    return (int) (hash >>> (64 - FANOUT_BITS * DEPTH));
+  }
+
+  /**
+   * 64-bit FNV-1a of the word's chars, followed by a final mix so the top bits
+   * (which pick the bucket) depend on every char
+   */
+  public static long Hash(String word) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < word.length(); i++) {
+      h ^= word.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,371 @@
+package ds.assign.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ds.common.Metrics;
+
+/**
+ * Long-lived connection to a neighbour, carrying several exchanges at once.
+ * Every exchange is a Stream with its own id (its correlation id), and
+ * everything written to it travels in frames
+ *
+ * int stream id, byte OPEN, DATA, CLOSE or CREDIT, int length, bytes
+ *
+ * so the exchange protocols run over a Stream exactly as they would over a
+ * socket of their own. The peer that connects opens the streams; on the other
+ * side every OPEN starts a new exchange on the handlers pool. A single thread
+ * per connection reads the frames.
+ *
+ * Every stream may have at most WINDOW bytes sent to it that it hasn't read
+ * yet: the reader hands the room back in CREDIT frames (an int, the number of
+ * bytes read) as it reads, and writers wait for it. So a slow exchange only
+ * holds itself back, never the frames of the others nor the reading thread.
+ *
+ * A stream that times out is closed on its own (a CLOSE frame tells the other
+ * side), and the exchanges on the other streams go on. The connection itself
+ * is dropped (and left out of Peer.LINKS, so the next exchange connects again)
+ * when the socket fails, or when nothing was read for LINK_IDLE_TIMEOUT ms
+ * (twice that on the accepting side, so it's the connecting side that closes
+ * an idle link)
+ */
+class MuxConnection implements Runnable {
+  public static final byte MAGIC = 'X';
+  static final byte OPEN = 0;
+  static final byte DATA = 1;
+  static final byte CLOSE = 2;
+  static final byte CREDIT = 3;
+  static final int HEADER = 4 + 1 + 4;
+  static final int MAX_FRAME = 1 << 20;
+  static final int WINDOW = 1 << 18; // bytes in flight per stream
+
+  private static final byte[] EOF = new byte[0];
+  private static final byte[] FAILED = new byte[0];
+
+  final Socket socket;
+  final DataInputStream in;
+  final DataOutputStream out;
+  final ExecutorService handlers; // null for the side that opens streams
+  final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+  int nextId = 0;
+  volatile boolean closed = false;
+
+  /**
+   * @param in       Input of the socket (possibly with MAGIC already read)
+   * @param handlers Where the exchanges opened by the other side run
+   */
+  public MuxConnection(Socket socket, InputStream in, ExecutorService handlers) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(in);
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    this.handlers = handlers;
+    socket.setKeepAlive(true);
+    socket.setSoTimeout(handlers == null ? Peer.LINK_IDLE_TIMEOUT : 2 * Peer.LINK_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Connects to a neighbour and starts reading its frames
+   */
+  public static MuxConnection Connect(Pair<String, Integer> target, int timeout) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getByName(target.getKey()), target.getValue()), timeout);
+      socket.setTcpNoDelay(true);
+      MuxConnection connection = new MuxConnection(socket,
+          new BufferedInputStream(Metrics.Counted(socket.getInputStream(), Peer.BYTES_IN)), null);
+      connection.out.writeByte(MAGIC);
+      connection.out.flush();
+
+      Thread reader = new Thread(connection, "mux-" + target.getKey() + ":" + target.getValue());
+      reader.setDaemon(true);
+      reader.start();
+      return connection;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @param timeout How long reads wait for the other side, in ms
+   */
+  public Stream open(int timeout) throws IOException {
+    synchronized (out) {
+      Stream stream = new Stream(++nextId, timeout);
+      streams.put(stream.id, stream);
+      send(stream.id, OPEN, EOF, 0, 0);
+      return stream;
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        int id = in.readInt();
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME)
+          throw new IOException("frame of " + length + " bytes");
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        if (type == OPEN && handlers != null) {
+          Stream exchange = new Stream(id, Peer.EXCHANGE_TIMEOUT);
+          streams.put(id, exchange);
+          handlers.execute(() -> {
+            try (Stream s = exchange) {
+              Connection.Serve(s.input, s.output);
+            } catch (Exception e) {
+              e.printStackTrace();
+            }
+          });
+          continue;
+        }
+
+        /* frames of exchanges that already finished on this side are dropped */
+        Stream stream = streams.get(id);
+        if (stream == null || type == OPEN)
+          continue;
+        if (type == CREDIT)
+          stream.grant(ByteBuffer.wrap(data).getInt());
+        else
+          stream.chunks.add(type == CLOSE ? EOF : data);
+      }
+    } catch (SocketTimeoutException | EOFException e) {
+      /* idle, or closed by the other side */
+    } catch (IOException e) {
+      if (!closed)
+        e.printStackTrace();
+    } finally {
+      close();
+    }
+  }
+
+  public void close() {
+    closed = true;
+    Peer.LINKS.values().remove(this);
+    for (Stream stream : streams.values()) {
+      stream.chunks.add(FAILED);
+      stream.grant(0);
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void send(int id, byte type, byte[] data, int offset, int length) throws IOException {
+    synchronized (out) {
+      if (closed)
+        throw new IOException("connection closed");
+      try {
+        out.writeInt(id);
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(data, offset, length);
+        out.flush();
+        Peer.BYTES_OUT.add(HEADER + length);
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * One exchange over the connection. What is written is sent as a frame on
+   * every flush
+   */
+  class Stream implements Closeable {
+    final int id;
+    final int timeout;
+    final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>(); // at most WINDOW bytes
+    boolean ended = false;
+    boolean timedOut = false;
+    int credit = WINDOW; // bytes we may still send, guarded by the stream
+    int unacknowledged = 0; // bytes read but not handed back as credit yet
+
+    final InputStream input = new InputStream() {
+      byte[] chunk = new byte[0];
+      int pos = 0;
+
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+          return 0;
+        while (pos == chunk.length) {
+          if (ended)
+            return -1;
+          byte[] next;
+          try {
+            next = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+          }
+          if (next == null) {
+            timeOut();
+            throw new SocketTimeoutException("no answer in " + timeout + " ms");
+          }
+          if (next == FAILED)
+            throw new IOException("connection lost");
+          if (next == EOF) {
+            ended = true;
+            return -1;
+          }
+          chunk = next;
+          pos = 0;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+
+        unacknowledged += n;
+        if (unacknowledged >= WINDOW / 2) {
+          send(id, CREDIT, ByteBuffer.allocate(4).putInt(unacknowledged).array(), 0, 4);
+          unacknowledged = 0;
+        }
+        return n;
+      }
+    };
+
+    final OutputStream output = new OutputStream() {
+      byte[] buffer = new byte[8192];
+      int size = 0;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+          if (size == WINDOW)
+            flush();
+          if (size == buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.min(WINDOW, buffer.length * 2));
+          int n = Math.min(len, buffer.length - size);
+          System.arraycopy(b, off, buffer, size, n);
+          size += n;
+          off += n;
+          len -= n;
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        for (int sent = 0; sent < size;) {
+          int n = take(size - sent);
+          send(id, DATA, buffer, sent, n);
+          sent += n;
+        }
+        size = 0;
+      }
+    };
+
+    Stream(int id, int timeout) {
+      this.id = id;
+      this.timeout = timeout;
+    }
+
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    public OutputStream getOutputStream() {
+      return output;
+    }
+
+    /**
+     * Waits for the other side to have room for up to n more bytes
+     *
+     * @return How many bytes may be sent now
+     */
+    private int take(int n) throws IOException {
+      long deadline = System.currentTimeMillis() + timeout;
+      synchronized (this) {
+        while (credit == 0 && !closed) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0)
+            break;
+          try {
+            wait(left);
+          } catch (InterruptedException e) {
+            throw new IOException("interrupted", e);
+          }
+        }
+        if (closed)
+          throw new IOException("connection lost");
+        if (credit > 0) {
+          int taken = Math.min(n, credit);
+          credit -= taken;
+          return taken;
+        }
+      }
+      /* not while holding the stream, since send may close the connection */
+      timeOut();
+      throw new SocketTimeoutException("no room to send in " + timeout + " ms");
+    }
+
+    /**
+     * Adds room for n more bytes (0 just wakes the writer up)
+     */
+    synchronized void grant(int n) {
+      credit += n;
+      notifyAll();
+    }
+
+    /*
+     * only this stream ends, the other side is told with a CLOSE frame
+     */
+    private void timeOut() {
+      timedOut = true;
+      streams.remove(id);
+      try {
+        send(id, CLOSE, EOF, 0, 0);
+      } catch (IOException e) {
+        /* the connection is gone anyway */
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      streams.remove(id);
+      if (closed || timedOut)
+        return;
+      output.flush();
+      send(id, CLOSE, EOF, 0, 0);
+    }
+  }
+}
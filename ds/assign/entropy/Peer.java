@@ -1,58 +1,40 @@
 package ds.assign.entropy;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
+import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import ds.common.LatencyHistogram;
+import ds.common.Lexicon;
+import ds.common.Metrics;
+import ds.common.TimedLock;
 import poisson.PoissonProcess;
 
-/**
- * @param <T> First element of the pair
- * @param <E> Second element of the pair
- */
-class Pair<T, E> {
-  public T key;
-  public E value;
-
-  public Pair(T key, E value) {
-    this.key = key;
-    this.value = value;
-  }
-
-  public T getKey() {
-    return key;
-  }
-
-  public void setKey(T key) {
-    this.key = key;
-  }
-
-  public E getValue() {
-    return value;
-  }
-
-  public void setValue(E value) {
-    this.value = value;
-  }
-}
-
 /**
  * Represents a Peer node in a Peer to Peer network
  */
@@ -63,12 +45,37 @@ public class Peer {
   public static String WORD_FILE;
   public static ArrayList<Pair<String, Integer>> TARGETS;
   public static HashMap<String, Pair<String, Integer>> MACHINE_TO_IP;
-  public static ArrayList<String> WORDS_ARRAY;
-  public static TreeSet<String> words;
-  public static ReentrantLock word_lock;
+  public static Lexicon LEXICON;
+  public static WordSet words;
+  public static MerkleTree digests;
+  public static IbltCache tables;
+  public static VersionLog versions;
+  public static ReentrantLock word_lock; // guards adding words, the digests, tables and versions
+  public static final List<WordListener> LISTENERS = new CopyOnWriteArrayList<>();
+  public static long FEED_INTERVAL = 1000;
+  public static int FEED_MAX_WORDS = 20;
   public static int SEED;
   public static int TIME_TO_WAIT;
-  public static int CONN_COUNT;
+  public static String EXCHANGE_MODE = "full";
+  public static int IBLT_MAX_DIFFERENCE = 100;
+  public static int VERSION_AUDIT = 10;
+  public static int FANOUT = 1;
+  public static int EXCHANGE_TIMEOUT = 5000;
+  public static int LINK_IDLE_TIMEOUT = 60000;
+  public static final Map<String, MuxConnection> LINKS = new ConcurrentHashMap<>(); // per target
+  public static boolean RUMOR_MONGERING = false;
+  public static int RUMOR_FANOUT = 2;
+  public static int RUMOR_STOP = 1;
+  public static long RUMOR_INTERVAL = 500;
+  public static boolean WORD_COMPRESSION = false;
+  public static String DATA_DIR = ""; // none: the set is only kept in memory
+  public static long SNAPSHOT_INTERVAL = 60000;
+  public static final Metrics.Counter CONN_COUNT = Metrics.Counter("entropy.connections.accepted");
+  public static final Metrics.Counter BYTES_IN = Metrics.Counter("entropy.bytes.in");
+  public static final Metrics.Counter BYTES_OUT = Metrics.Counter("entropy.bytes.out");
+  public static final LatencyHistogram EXCHANGE_TIME = Metrics.Histogram("entropy.exchange.ns");
+  public static final LatencyHistogram SERVE_TIME = Metrics.Histogram("entropy.serve.ns");
+  public static int METRICS_PORT = 0; // base port, none when 0
   public static String host;
   public static int port;
   Logger logger;
@@ -110,26 +117,121 @@ public class Peer {
     PUSH_PULL_LAMBDA = Integer.parseInt(prop.getProperty("PUSH_PULL_LAMBDA"));
     WORD_FILE = prop.getProperty("WORD_FILE");
     TIME_TO_WAIT = Integer.parseInt(prop.getProperty("TIME_TO_WAIT"));
+    EXCHANGE_MODE = prop.getProperty("EXCHANGE_MODE", "full").trim();
+    IBLT_MAX_DIFFERENCE = Integer.parseInt(prop.getProperty("IBLT_MAX_DIFFERENCE", "100"));
+    VERSION_AUDIT = Integer.parseInt(prop.getProperty("VERSION_AUDIT", "10"));
+    WORD_COMPRESSION = Boolean.parseBoolean(prop.getProperty("WORD_COMPRESSION", "false").trim());
+    FEED_INTERVAL = Long.parseLong(prop.getProperty("FEED_INTERVAL", "1000"));
+    FEED_MAX_WORDS = Integer.parseInt(prop.getProperty("FEED_MAX_WORDS", "20"));
+    FANOUT = Integer.parseInt(prop.getProperty("FANOUT", "1"));
+    EXCHANGE_TIMEOUT = Integer.parseInt(prop.getProperty("EXCHANGE_TIMEOUT", "5000"));
+    LINK_IDLE_TIMEOUT = Integer.parseInt(prop.getProperty("LINK_IDLE_TIMEOUT", "60000"));
+    RUMOR_MONGERING = Boolean.parseBoolean(prop.getProperty("RUMOR_MONGERING", "false").trim());
+    RUMOR_FANOUT = Integer.parseInt(prop.getProperty("RUMOR_FANOUT", "2"));
+    RUMOR_STOP = Integer.parseInt(prop.getProperty("RUMOR_STOP", "1"));
+    RUMOR_INTERVAL = Long.parseLong(prop.getProperty("RUMOR_INTERVAL", "500"));
+    DATA_DIR = prop.getProperty("DATA_DIR", "").trim();
+    SNAPSHOT_INTERVAL = Long.parseLong(prop.getProperty("SNAPSHOT_INTERVAL", "60000"));
+    METRICS_PORT = Integer.parseInt(prop.getProperty("METRICS_PORT", "0"));
   }
 
   /**
-   * Reads the file stored in WORD_FILE and then places its trimmed contents into
-   * the WORDS_ARRAY
+   * Maps the file stored in WORD_FILE into the LEXICON, its trimmed lines are
+   * only read when used
    */
   public static void SetupWords() {
-    try (BufferedReader br = new BufferedReader(new FileReader(WORD_FILE))) {
-      String line;
-      while ((line = br.readLine()) != null) {
-        WORDS_ARRAY.add(line.trim());
-      }
+    try {
+      LEXICON = Lexicon.Open(WORD_FILE);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Adds the words to the set, keeping the hash tree and the versions up to date
+   *
+   * @return How many of them were new
+   */
+  public static int AddWords(Collection<String> gotten) {
+    return AddNewWords(gotten).size();
+  }
+
+  /**
+   * Same as AddWords
+   *
+   * @return The words that were new
+   */
+  public static List<String> AddNewWords(Collection<String> gotten) {
+    List<String> added = new ArrayList<>();
+    int size;
+    word_lock.lock();
+    try {
+      for (String word : gotten) {
+        /*
+         * encoded and hashed once, for everything that keeps the word
+         */
+        int code = words.encode(word);
+        if (words.add(word, code)) {
+          long hash = MerkleTree.Hash(word);
+          digests.add(word, code, hash);
+          tables.add(hash);
+          versions.added(word, code);
+          added.add(word);
+        }
+      }
+      size = words.size();
+    } finally {
+      word_lock.unlock();
+    }
+
+    if (!added.isEmpty()) {
+      for (WordListener listener : LISTENERS)
+        listener.wordsAdded(added, size);
+    }
+    return added;
+  }
+
+  /**
+   * @return Up to n distinct targets, picked at random
+   */
+  public static List<Pair<String, Integer>> RandomTargets(Random random, int n) {
+    List<Pair<String, Integer>> targets = new ArrayList<>(TARGETS);
+    Collections.shuffle(targets, random);
+    return targets.subList(0, Math.min(n, targets.size()));
+  }
+
+  /**
+   * Starts an exchange with the target over the connection kept open to it,
+   * connecting first if there is none (or it was lost). Connecting doesn't
+   * hold up the exchanges with the other targets: when two threads connect to
+   * the same target at once, the first connection kept wins and the other one
+   * is closed
+   *
+   * @return The exchange's stream, whose reads time out after EXCHANGE_TIMEOUT ms
+   */
+  public static MuxConnection.Stream Open(Pair<String, Integer> target) throws IOException {
+    String key = target.getKey() + ":" + target.getValue();
+    MuxConnection connection = LINKS.get(key);
+    if (connection == null || connection.isClosed()) {
+      MuxConnection fresh = MuxConnection.Connect(target, EXCHANGE_TIMEOUT);
+      connection = LINKS.merge(key, fresh, (kept, f) -> kept.isClosed() ? f : kept);
+      if (connection != fresh)
+        fresh.close();
+    }
+    return connection.open(EXCHANGE_TIMEOUT);
+  }
+
+  public static void AddListener(WordListener listener) {
+    LISTENERS.add(listener);
+  }
+
+  /**
+   * Prints a snapshot of the set, so words can still be added meanwhile
+   */
   public static void PrintWords() {
-    System.out.println("\n===== " + words.size() + " =====");
-    Peer.words.forEach(s -> System.out.print(s + " "));
+    WordSet.Snapshot snapshot = words.snapshot();
+    System.out.println("\n===== " + snapshot.size() + " =====");
+    snapshot.forEach(s -> System.out.print(s + " "));
     System.out.println("\n==============\n");
   }
 
@@ -145,15 +247,31 @@ public class Peer {
       TARGETS.add(MACHINE_TO_IP.get(args[i]));
     }
 
-    CONN_COUNT = 0;
-
     host = MACHINE_TO_IP.get(args[0]).getKey();
     port = MACHINE_TO_IP.get(args[0]).getValue();
 
-    word_lock = new ReentrantLock();
-    words = new TreeSet<>();
-    WORDS_ARRAY = new ArrayList<>();
+    word_lock = new TimedLock(Metrics.Histogram("entropy.word_lock.wait.ns"));
     SetupWords();
+    words = new WordSet(LEXICON);
+    digests = new MerkleTree(words);
+    tables = new IbltCache(words);
+    versions = new VersionLog(words, port % 10, System.currentTimeMillis());
+
+    if (!DATA_DIR.isEmpty()) {
+      WordJournal journal = new WordJournal(Paths.get(DATA_DIR, args[0]).toString(), SNAPSHOT_INTERVAL);
+      System.out.printf("recovered %d words from %s\n", AddWords(journal.recover()), journal.dir);
+      AddListener(journal);
+      new Thread(journal).start();
+    }
+
+    ChangeFeed feed = new ChangeFeed(FEED_INTERVAL, FEED_MAX_WORDS);
+    AddListener(feed);
+    new Thread(feed).start();
+    new Thread(new Commands()).start();
+
+    Metrics.Gauge("entropy.words", () -> words.size());
+    Metrics.Gauge("entropy.links", () -> LINKS.size());
+    Metrics.Expose("entropy-" + args[0], METRICS_PORT == 0 ? 0 : METRICS_PORT + port % 10);
 
     new Thread(new Server(host, port, peer.logger)).start();
 
@@ -162,17 +280,24 @@ public class Peer {
     SEED = new Random().nextInt();
     new Thread(new WordGenerator(WORD_LAMBDA, SEED)).start();
     new Thread(new PushPullGenerator(PUSH_PULL_LAMBDA, SEED)).start();
+    if (RUMOR_MONGERING) {
+      RumorMonger monger = new RumorMonger(RUMOR_FANOUT, RUMOR_STOP, RUMOR_INTERVAL, SEED);
+      AddListener(monger);
+      new Thread(monger).start();
+    }
   }
 }
 
 /**
- * Server used for receiving connections from other peers
+ * Server used for receiving connections from other peers. Accepted sockets are
+ * served from a pool, so threads are reused across connections
  */
 class Server implements Runnable {
   String host;
   int port;
   ServerSocket server;
   Logger logger;
+  ExecutorService connections = Executors.newCachedThreadPool();
 
   public Server(String host, int port, Logger logger) throws Exception {
     this.host = host;
@@ -190,7 +315,7 @@ class Server implements Runnable {
           Socket client = server.accept();
           String clientAddress = client.getInetAddress().getHostAddress();
 
-          new Thread(new Connection(clientAddress, client, logger)).start();
+          connections.execute(new Connection(clientAddress, client, logger, connections));
         } catch (Exception e) {
           e.printStackTrace();
         }
@@ -202,53 +327,29 @@ class Server implements Runnable {
 }
 
 /**
- * Represents a connection with another peer. This class is called whenever
- * another peer connects to us via the Server class
+ * Reads commands from the terminal: "dump" prints the whole word set, "size"
+ * just how many words it has
  */
-class Connection implements Runnable {
-  String clientAddress;
-  Socket clientSocket;
-  Logger logger;
-
-  public Connection(String clientAddress, Socket clientSocket, Logger logger) {
-    this.clientAddress = clientAddress;
-    this.clientSocket = clientSocket;
-    this.logger = logger;
-    Peer.CONN_COUNT++;
-  }
-
+class Commands implements Runnable {
   @Override
   public void run() {
-    try {
-      /*
-       * prepare socket I/O channels
-       */
-      InputStream inputStream = clientSocket.getInputStream();
-      ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-
-      /*
-       * Do stuff with the connection here, for now, nothing though
-       */
-      TreeSet<String> set_gotten = (TreeSet<String>) objectInputStream.readObject();
-
-      Peer.word_lock.lock();
-      try {
-        Peer.words.addAll(set_gotten);
-
-        OutputStream outputStream = clientSocket.getOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-
-        objectOutputStream.writeObject(Peer.words);
-      } finally {
-        Peer.PrintWords();
-        Peer.word_lock.unlock();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        switch (line.trim()) {
+          case "dump":
+            Peer.PrintWords();
+            break;
+          case "size":
+            System.out.println("===== " + Peer.words.size() + " =====");
+            break;
+          case "":
+            break;
+          default:
+            System.out.println("unknown command, use dump or size");
+        }
       }
-      /*
-       * close connection
-       */
-      clientSocket.close();
-
-    } catch (Exception e) {
+    } catch (IOException e) {
       e.printStackTrace();
     }
   }
@@ -272,14 +373,9 @@ class WordGenerator implements Runnable {
   @Override
   public void run() {
     while (true) {
-      String word = Peer.port % 10 + Peer.WORDS_ARRAY.get(random.nextInt(Peer.WORDS_ARRAY.size()));
-      Peer.word_lock.lock();
-      try {
-        // System.out.println("Generated: " + word);
-        Peer.words.add(word);
-      } finally {
-        Peer.word_lock.unlock();
-      }
+      String word = Peer.port % 10 + Peer.LEXICON.get(random.nextInt(Peer.LEXICON.size()));
+      // System.out.println("Generated: " + word);
+      Peer.AddWords(List.of(word));
 
       double t_sleep = pp.timeForNextEvent() * 60 * 1000;
       try {
@@ -293,61 +389,50 @@ class WordGenerator implements Runnable {
 }
 
 /**
- * Represents the class that randomly generates the PushPull requests
+ * Represents the class that randomly generates the PushPull requests. Every
+ * event starts an exchange with FANOUT random targets at once, each one on a
+ * thread of its own and bounded by EXCHANGE_TIMEOUT, so a slow neighbour only
+ * delays itself. A target that is still busy with a previous exchange is
+ * skipped
  */
 class PushPullGenerator implements Runnable {
+  static final int IBLT_MIN_CELLS = 24;
+  static final int IBLT_SLACK = 8;
 
   PoissonProcess pp;
   int seed;
   Random random;
+  ExecutorService exchanges;
+  Set<String> busy = ConcurrentHashMap.newKeySet();
+  Map<String, Integer> lastDifference = new ConcurrentHashMap<>(); // words, per target
+  Map<String, Integer> versionExchanges = new ConcurrentHashMap<>(); // per target
 
   public PushPullGenerator(int lambda, int seed) {
     this.seed = seed;
     random = new Random(seed);
     pp = new PoissonProcess(lambda, new Random(seed));
-  }
-
-  public int RandomInRange(Random random, int min, int max) {
-    return (min + random.nextInt(max - min + 1));
+    exchanges = Executors.newFixedThreadPool(Math.max(1, Peer.FANOUT));
   }
 
   @Override
   public void run() {
     while (true) {
-      Pair<String, Integer> target = Peer.TARGETS.get(RandomInRange(random, 0, Peer.TARGETS.size() - 1));
-
-      try {
-        // System.out.println("PushPull with: " + target.getValue()%10);
-        Socket peerSocket = new Socket(InetAddress.getByName(target.getKey()), target.getValue());
-
-        OutputStream outputStream = peerSocket.getOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
-
-        Peer.word_lock.lock();
-        try {
-          objectOutputStream.writeObject(Peer.words);
-        } catch (Exception e) {
-          e.printStackTrace();
-        } finally {
-          Peer.word_lock.unlock();
-        }
-
-        InputStream inputStream = peerSocket.getInputStream();
-        ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
-        TreeSet<String> set_gotten = (TreeSet<String>) objectInputStream.readObject();
-
-        Peer.word_lock.lock();
-        Peer.words.addAll(set_gotten);
-
-        peerSocket.close();
-
-        Peer.PrintWords();
-
-        Peer.word_lock.unlock();
-
-      } catch (Exception e) {
-        e.printStackTrace();
-        throw new RuntimeException(e);
+      for (Pair<String, Integer> target : Peer.RandomTargets(random, Peer.FANOUT)) {
+        String key = target.getKey() + ":" + target.getValue();
+        if (!busy.add(key))
+          continue;
+
+        exchanges.execute(() -> {
+          long start = System.nanoTime();
+          try {
+            exchange(target, key);
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            Peer.EXCHANGE_TIME.recordSince(start);
+            busy.remove(key);
+          }
+        });
       }
 
       double t_sleep = pp.timeForNextEvent() * 60 * 1000;
@@ -358,4 +443,40 @@ class PushPullGenerator implements Runnable {
       }
     }
   }
+
+  private void exchange(Pair<String, Integer> target, String key) throws IOException {
+    // System.out.println("PushPull with: " + target.getValue()%10);
+    try (MuxConnection.Stream peerSocket = Peer.Open(target)) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(peerSocket.getOutputStream()));
+
+      if (Peer.EXCHANGE_MODE.equals("full")) {
+        WordSetCodec.Write(out, Peer.words.snapshot(), Peer.WORD_COMPRESSION);
+        out.flush();
+        Peer.AddWords(WordSetCodec.Read(in));
+        return;
+      }
+
+      /*
+       * the first exchange with a target, and every VERSION_AUDIT-th after it,
+       * also checks the words that aren't in the version logs
+       */
+      if (Peer.EXCHANGE_MODE.equals("version")) {
+        int n = versionExchanges.merge(key, 1, Integer::sum) - 1;
+        VersionExchange.Initiate(in, out, Peer.VERSION_AUDIT > 0 && n % Peer.VERSION_AUDIT == 0);
+        return;
+      }
+
+      /*
+       * a single round trip is enough when we last differed by a few words
+       */
+      Integer last = lastDifference.get(key);
+      Pair<Integer, Integer> exchanged;
+      if (Peer.EXCHANGE_MODE.equals("adaptive") && last != null && last <= Peer.IBLT_MAX_DIFFERENCE)
+        exchanged = IbltExchange.Initiate(in, out, Math.max(IBLT_MIN_CELLS, 2 * (last + IBLT_SLACK)));
+      else
+        exchanged = MerkleExchange.Initiate(in, out);
+      lastDifference.put(key, exchanged.getKey() + exchanged.getValue());
+    }
+  }
 }
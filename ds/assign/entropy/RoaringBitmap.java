@@ -0,0 +1,188 @@
+package ds.assign.entropy;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Compressed set of non-negative ints, after Roaring bitmaps: values are
+ * grouped by their upper 16 bits, and each group keeps its lower 16 bits either
+ * as a sorted array (2 bytes per value) or, past ARRAY_MAX values, as a plain
+ * bitmap of 8 KB. Sparse and dense sets both stay small.
+ *
+ * A copy shares the groups with the original, and the original copies a group
+ * the first time it changes it afterwards, so copying costs one reference per
+ * group and a writer pays only for the groups it touches
+ */
+class RoaringBitmap {
+  public static final int ARRAY_MAX = 4096;
+
+  private char[] keys = new char[0];
+  private Container[] containers = new Container[0];
+  private int size = 0; // containers in use
+  private int cardinality = 0;
+
+  /**
+   * @return Whether the value was new
+   */
+  public boolean add(int value) {
+    char key = (char) (value >>> 16);
+    int i = Arrays.binarySearch(keys, 0, size, key);
+    if (i < 0) {
+      i = -i - 1;
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(4, size * 2));
+        containers = Arrays.copyOf(containers, keys.length);
+      }
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(containers, i, containers, i + 1, size - i);
+      keys[i] = key;
+      containers[i] = new Container();
+      size++;
+    }
+    if (containers[i].shared) {
+      if (containers[i].contains((char) value))
+        return false;
+      containers[i] = containers[i].copy();
+    }
+    if (!containers[i].add((char) value))
+      return false;
+    cardinality++;
+    return true;
+  }
+
+  public boolean contains(int value) {
+    int i = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+    return i >= 0 && containers[i].contains((char) value);
+  }
+
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @return A copy of the bitmap, which this one never changes
+   */
+  public RoaringBitmap copy() {
+    RoaringBitmap copy = new RoaringBitmap();
+    copy.keys = Arrays.copyOf(keys, size);
+    copy.containers = Arrays.copyOf(containers, size);
+    for (int i = 0; i < size; i++)
+      containers[i].shared = true;
+    copy.size = size;
+    copy.cardinality = cardinality;
+    return copy;
+  }
+
+  /**
+   * @return The values, in increasing order
+   */
+  public PrimitiveIterator.OfInt iterator() {
+    return new PrimitiveIterator.OfInt() {
+      int container = 0;
+      int low = -1; // last value returned from the current container
+
+      @Override
+      public boolean hasNext() {
+        while (container < size) {
+          int next = containers[container].next(low + 1);
+          if (next >= 0)
+            return true;
+          container++;
+          low = -1;
+        }
+        return false;
+      }
+
+      @Override
+      public int nextInt() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        low = containers[container].next(low + 1);
+        return keys[container] << 16 | low;
+      }
+    };
+  }
+
+  /**
+   * Lower 16 bits of the values sharing the same upper 16 bits
+   */
+  private static class Container {
+    char[] array = new char[4]; // sorted, while there are few values
+    long[] bits; // once there are many
+    int cardinality = 0;
+    boolean shared = false; // held by a copy too, so never changed again
+
+    boolean add(char value) {
+      if (bits != null) {
+        long mask = 1L << value;
+        if ((bits[value >>> 6] & mask) != 0)
+          return false;
+        bits[value >>> 6] |= mask;
+        cardinality++;
+        return true;
+      }
+
+      int i = Arrays.binarySearch(array, 0, cardinality, value);
+      if (i >= 0)
+        return false;
+      if (cardinality == ARRAY_MAX) {
+        toBitmap();
+        return add(value);
+      }
+      i = -i - 1;
+      if (cardinality == array.length)
+        array = Arrays.copyOf(array, Math.min(ARRAY_MAX, Math.max(4, array.length * 2)));
+      System.arraycopy(array, i, array, i + 1, cardinality - i);
+      array[i] = value;
+      cardinality++;
+      return true;
+    }
+
+    boolean contains(char value) {
+      if (bits != null)
+        return (bits[value >>> 6] & (1L << value)) != 0;
+      return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+    }
+
+    /**
+     * @return The smallest value that is at least from, or -1
+     */
+    int next(int from) {
+      if (from > 0xffff)
+        return -1;
+      if (bits == null) {
+        int i = Arrays.binarySearch(array, 0, cardinality, (char) from);
+        i = i >= 0 ? i : -i - 1;
+        return i < cardinality ? array[i] : -1;
+      }
+
+      int word = from >>> 6;
+      long remaining = bits[word] & (-1L << from);
+      while (remaining == 0) {
+        if (++word == bits.length)
+          return -1;
+        remaining = bits[word];
+      }
+      return word * 64 + Long.numberOfTrailingZeros(remaining);
+    }
+
+    private void toBitmap() {
+      bits = new long[1 << 10];
+      for (int i = 0; i < cardinality; i++)
+        bits[array[i] >>> 6] |= 1L << array[i];
+      array = null;
+    }
+
+    /**
+     * @return A copy that isn't shared
+     */
+    Container copy() {
+      Container copy = new Container();
+      copy.array = array == null ? null : Arrays.copyOf(array, cardinality);
+      copy.bits = bits == null ? null : bits.clone();
+      copy.cardinality = cardinality;
+      return copy;
+    }
+  }
+}
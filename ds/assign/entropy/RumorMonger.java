@@ -0,0 +1,153 @@
+package ds.assign.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ds.common.Metrics;
+
+/**
+ * Rumor mongering on top of anti-entropy: every new word (generated or learned)
+ * becomes a rumor, and every RUMOR_INTERVAL ms the current rumors are pushed to
+ * RUMOR_FANOUT random targets, which answer which of them they already knew.
+ * A rumor stops being pushed once RUMOR_STOP targets reported knowing it, so
+ * new words spread fast while old ones cost nothing. The targets that didn't
+ * know a word start spreading it themselves. Like PushPullGenerator, a target
+ * that is still busy with the previous push is skipped, so a slow one never
+ * has more than one push waiting for it
+ */
+class RumorMonger implements WordListener, Runnable {
+  public static final byte MAGIC = 'R';
+  public static final int MAX_RUMORS = 10000;
+
+  int fanout;
+  int stop;
+  long interval; // ms
+  Random random;
+  ExecutorService pushes;
+  Set<String> busy = ConcurrentHashMap.newKeySet();
+
+  /* rumors still being spread, and how many targets already knew each one */
+  private final LinkedHashMap<String, Integer> rumors = new LinkedHashMap<>();
+
+  public RumorMonger(int fanout, int stop, long interval, int seed) {
+    this.fanout = fanout;
+    this.stop = stop;
+    this.interval = interval;
+    this.random = new Random(seed);
+    this.pushes = Executors.newFixedThreadPool(Math.max(1, fanout));
+    Metrics.Gauge("entropy.rumors", this::pending);
+  }
+
+  /**
+   * @return How many rumors are still being spread
+   */
+  public synchronized int pending() {
+    return rumors.size();
+  }
+
+  @Override
+  public synchronized void wordsAdded(List<String> added, int size) {
+    for (String word : added)
+      rumors.putIfAbsent(word, 0);
+
+    /* forget the oldest rumors rather than growing without bound */
+    Iterator<String> oldest = rumors.keySet().iterator();
+    while (rumors.size() > MAX_RUMORS) {
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      List<String> hot;
+      synchronized (this) {
+        hot = new ArrayList<>(rumors.keySet());
+      }
+      if (hot.isEmpty())
+        continue;
+      /* sorted, so that WordSetCodec front-codes them */
+      Collections.sort(hot);
+
+      for (Pair<String, Integer> target : Peer.RandomTargets(random, fanout)) {
+        String key = target.getKey() + ":" + target.getValue();
+        if (!busy.add(key))
+          continue;
+
+        pushes.execute(() -> {
+          try {
+            feedback(hot, push(target, hot));
+          } catch (IOException e) {
+            e.printStackTrace();
+          } finally {
+            busy.remove(key);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * @return Which of the words the target already knew
+   */
+  private static boolean[] push(Pair<String, Integer> target, List<String> words) throws IOException {
+    try (MuxConnection.Stream socket = Peer.Open(target)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out.writeByte(MAGIC);
+      WordSetCodec.Write(out, words, Peer.WORD_COMPRESSION);
+      out.flush();
+
+      boolean[] known = new boolean[words.size()];
+      for (int i = 0; i < known.length; i++)
+        known[i] = in.readBoolean();
+      return known;
+    }
+  }
+
+  private synchronized void feedback(List<String> words, boolean[] known) {
+    for (int i = 0; i < known.length; i++) {
+      if (!known[i])
+        continue;
+      Integer count = rumors.get(words.get(i));
+      if (count == null)
+        continue;
+      if (count + 1 >= stop)
+        rumors.remove(words.get(i));
+      else
+        rumors.put(words.get(i), count + 1);
+    }
+  }
+
+  /**
+   * Answers a push of rumors, after MAGIC was read
+   */
+  public static void Respond(DataInputStream in, DataOutputStream out) throws IOException {
+    List<String> words = WordSetCodec.Read(in);
+    Set<String> added = new HashSet<>(Peer.AddNewWords(words));
+    for (String word : words)
+      out.writeBoolean(!added.contains(word));
+    out.flush();
+  }
+}
@@ -0,0 +1,438 @@
+package ds.assign.entropy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import poisson.PoissonProcess;
+import poisson.SampleValues;
+
+/**
+ * Runs thousands of virtual entropy peers in a single JVM, on a discrete-event
+ * clock, to see how fast a configuration converges before deploying it. Every
+ * peer generates words and starts push-pulls with FANOUT random neighbours at
+ * the rates of the real peers (WORD_LAMBDA and PUSH_PULL_LAMBDA, events per
+ * minute, from a PoissonProcess each), and every message takes as long as the
+ * LinkModel says.
+ *
+ * Words are only generated for the first SIM_WORDS_FOR ms; the run ends when
+ * every peer has every word (or at SIM_MAX_TIME), and reports how long that
+ * took, the bytes sent and the exchanges per peer. Exchanges are either "full"
+ * (both whole sets) or "merkle", whose bytes and round trips are estimated from
+ * the MerkleTree's shape. Configured by conf_simulation.prop:
+ *
+ * java ds.assign.entropy.Simulator [properties file]
+ */
+public class Simulator {
+  public static int SIM_PEERS = 1000;
+  public static String SIM_TOPOLOGY = "random"; // ring, line, random or complete
+  public static int SIM_DEGREE = 4; // extra links per peer, random topology only
+  public static double WORD_LAMBDA = 1;
+  public static double PUSH_PULL_LAMBDA = 6;
+  public static int FANOUT = 1;
+  public static String SIM_EXCHANGE = "full";
+  public static double SIM_WORDS_FOR = 60000; // ms
+  public static double SIM_MAX_TIME = 3600000; // ms
+  public static double SIM_LATENCY = 20; // ms, one way
+  public static double SIM_JITTER = 5; // ms
+  public static double SIM_BANDWIDTH = 1250000; // bytes per second
+  public static int SIM_WORD_BYTES = 8;
+  public static double SIM_REPORT_INTERVAL = 60000; // ms
+  public static long SIM_SEED = 1;
+
+  static final int MESSAGE_HEADER = 16;
+  static final int DIGEST_BYTES = 8 + 4;
+
+  /**
+   * How long a message takes to get across
+   */
+  public interface LinkModel {
+    /**
+     * @return The delay, in ms, of a message of the given size from one peer to
+     *         another
+     */
+    double delay(int from, int to, long bytes);
+  }
+
+  /**
+   * Same latency (plus uniform jitter) and bandwidth on every link
+   */
+  public static class UniformLink implements LinkModel {
+    final double latency; // ms
+    final double jitter; // ms
+    final double bandwidth; // bytes per second
+    final Random random;
+
+    public UniformLink(double latency, double jitter, double bandwidth, Random random) {
+      this.latency = latency;
+      this.jitter = jitter;
+      this.bandwidth = bandwidth;
+      this.random = random;
+    }
+
+    @Override
+    public double delay(int from, int to, long bytes) {
+      return latency + random.nextDouble() * jitter + bytes * 1000.0 / bandwidth;
+    }
+  }
+
+  /**
+   * Something that happens at a given time. Events at the same time run in the
+   * order they were scheduled
+   */
+  static class Event implements Comparable<Event> {
+    final double time;
+    final long order;
+    final Runnable action;
+
+    Event(double time, long order, Runnable action) {
+      this.time = time;
+      this.order = order;
+      this.action = action;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      int c = Double.compare(time, other.time);
+      return c != 0 ? c : Long.compare(order, other.order);
+    }
+  }
+
+  final int peers;
+  final int[][] neighbours; // null for the complete graph
+  final LinkModel link;
+  final Random random;
+  final BitSet[] sets;
+  final PoissonProcess[] wordClocks;
+  final PoissonProcess[] pushPullClocks;
+  final PriorityQueue<Event> events = new PriorityQueue<>();
+  final Set<Long> busy = new HashSet<>(); // initiator, target
+  long order = 0;
+  double now = 0;
+
+  /* words are numbered in the order they're generated */
+  int generated = 0;
+  double[] born = new double[1024];
+  int[] holders = new int[1024];
+  int everywhere = 0;
+  double lastWord = 0;
+  final List<Double> spread = new ArrayList<>(); // ms for a word to reach every peer
+
+  long bytes = 0;
+  long messages = 0;
+  final long[] exchanges;
+
+  public Simulator(int peers, int[][] neighbours, LinkModel link, Random random) {
+    this.peers = peers;
+    this.neighbours = neighbours;
+    this.link = link;
+    this.random = random;
+    sets = new BitSet[peers];
+    wordClocks = new PoissonProcess[peers];
+    pushPullClocks = new PoissonProcess[peers];
+    exchanges = new long[peers];
+    for (int i = 0; i < peers; i++) {
+      sets[i] = new BitSet();
+      wordClocks[i] = new PoissonProcess(WORD_LAMBDA, new Random(random.nextLong()));
+      pushPullClocks[i] = new PoissonProcess(PUSH_PULL_LAMBDA, new Random(random.nextLong()));
+    }
+  }
+
+  /**
+   * @param file The file containing the properties
+   * @throws IOException Throws an IOException whenever it can't read the file
+   */
+  public static void ReadConfigurationFileProp(String file) throws IOException {
+    Properties prop = new Properties();
+    prop.load(new FileInputStream(file));
+
+    SIM_PEERS = Integer.parseInt(prop.getProperty("SIM_PEERS", "1000"));
+    SIM_TOPOLOGY = prop.getProperty("SIM_TOPOLOGY", "random").trim();
+    SIM_DEGREE = Integer.parseInt(prop.getProperty("SIM_DEGREE", "4"));
+    WORD_LAMBDA = Double.parseDouble(prop.getProperty("WORD_LAMBDA", "1"));
+    PUSH_PULL_LAMBDA = Double.parseDouble(prop.getProperty("PUSH_PULL_LAMBDA", "6"));
+    FANOUT = Integer.parseInt(prop.getProperty("FANOUT", "1"));
+    SIM_EXCHANGE = prop.getProperty("SIM_EXCHANGE", "full").trim();
+    SIM_WORDS_FOR = Double.parseDouble(prop.getProperty("SIM_WORDS_FOR", "60000"));
+    SIM_MAX_TIME = Double.parseDouble(prop.getProperty("SIM_MAX_TIME", "3600000"));
+    SIM_LATENCY = Double.parseDouble(prop.getProperty("SIM_LATENCY", "20"));
+    SIM_JITTER = Double.parseDouble(prop.getProperty("SIM_JITTER", "5"));
+    SIM_BANDWIDTH = Double.parseDouble(prop.getProperty("SIM_BANDWIDTH", "1250000"));
+    SIM_WORD_BYTES = Integer.parseInt(prop.getProperty("SIM_WORD_BYTES", "8"));
+    SIM_REPORT_INTERVAL = Double.parseDouble(prop.getProperty("SIM_REPORT_INTERVAL", "60000"));
+    SIM_SEED = Long.parseLong(prop.getProperty("SIM_SEED", "1"));
+  }
+
+  /**
+   * @return The neighbours of every peer, or null for the complete graph
+   */
+  public static int[][] Topology(String topology, int peers, int degree, Random random) {
+    if (topology.equals("complete"))
+      return null;
+
+    List<Set<Integer>> links = new ArrayList<>();
+    for (int i = 0; i < peers; i++)
+      links.add(new HashSet<>());
+    /*
+     * every topology has the line, so it's connected
+     */
+    for (int i = 0; i + 1 < peers; i++) {
+      links.get(i).add(i + 1);
+      links.get(i + 1).add(i);
+    }
+    if (!topology.equals("line") && peers > 2) {
+      links.get(0).add(peers - 1);
+      links.get(peers - 1).add(0);
+    }
+    if (topology.equals("random")) {
+      for (int i = 0; i < peers; i++) {
+        for (int k = 0; k < degree && peers > 1; k++) {
+          int j = random.nextInt(peers);
+          if (j != i) {
+            links.get(i).add(j);
+            links.get(j).add(i);
+          }
+        }
+      }
+    } else if (!topology.equals("ring") && !topology.equals("line")) {
+      throw new IllegalArgumentException("unknown topology " + topology);
+    }
+
+    int[][] neighbours = new int[peers][];
+    for (int i = 0; i < peers; i++)
+      neighbours[i] = links.get(i).stream().mapToInt(Integer::intValue).sorted().toArray();
+    return neighbours;
+  }
+
+  void schedule(double time, Runnable action) {
+    events.add(new Event(time, order++, action));
+  }
+
+  /**
+   * Runs until every word reached every peer, or until maxTime
+   *
+   * @return Whether it converged
+   */
+  public boolean run(double wordsFor, double maxTime, double reportInterval) {
+    for (int i = 0; i < peers; i++) {
+      int peer = i;
+      schedule(Minutes(wordClocks[i]), () -> word(peer, wordsFor));
+      schedule(Minutes(pushPullClocks[i]), () -> pushPull(peer));
+    }
+    if (reportInterval > 0)
+      schedule(reportInterval, () -> progress(reportInterval));
+
+    while (!events.isEmpty()) {
+      Event event = events.poll();
+      if (event.time > maxTime)
+        return false;
+      now = event.time;
+      event.action.run();
+      if (now >= wordsFor && everywhere == generated)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return The time to the clock's next event, in ms
+   */
+  static double Minutes(PoissonProcess clock) {
+    return clock.timeForNextEvent() * 60 * 1000;
+  }
+
+  private void word(int peer, double wordsFor) {
+    if (now >= wordsFor)
+      return;
+    if (generated == born.length) {
+      born = Arrays.copyOf(born, born.length * 2);
+      holders = Arrays.copyOf(holders, holders.length * 2);
+    }
+    int word = generated++;
+    born[word] = now;
+    lastWord = now;
+    learn(peer, word);
+    schedule(now + Minutes(wordClocks[peer]), () -> word(peer, wordsFor));
+  }
+
+  private void learn(int peer, int word) {
+    if (sets[peer].get(word))
+      return;
+    sets[peer].set(word);
+    if (++holders[word] == peers) {
+      everywhere++;
+      spread.add(now - born[word]);
+    }
+  }
+
+  /**
+   * Adds the words the peer is missing
+   */
+  private void merge(int peer, BitSet words) {
+    BitSet missing = (BitSet) words.clone();
+    missing.andNot(sets[peer]);
+    for (int word = missing.nextSetBit(0); word >= 0; word = missing.nextSetBit(word + 1))
+      learn(peer, word);
+  }
+
+  private void pushPull(int peer) {
+    for (int target : targets(peer)) {
+      long key = (long) peer * peers + target;
+      if (busy.add(key)) {
+        if (SIM_EXCHANGE.equals("merkle"))
+          merkle(peer, target, key);
+        else
+          full(peer, target, key);
+      }
+    }
+    schedule(now + Minutes(pushPullClocks[peer]), () -> pushPull(peer));
+  }
+
+  /**
+   * @return Up to FANOUT distinct neighbours, picked at random
+   */
+  private int[] targets(int peer) {
+    if (neighbours == null) {
+      Set<Integer> picked = new HashSet<>();
+      while (picked.size() < Math.min(FANOUT, peers - 1)) {
+        int target = random.nextInt(peers);
+        if (target != peer)
+          picked.add(target);
+      }
+      return picked.stream().mapToInt(Integer::intValue).toArray();
+    }
+    int[] candidates = neighbours[peer].clone();
+    int n = Math.min(FANOUT, candidates.length);
+    for (int i = 0; i < n; i++) {
+      int j = i + random.nextInt(candidates.length - i);
+      int swap = candidates[i];
+      candidates[i] = candidates[j];
+      candidates[j] = swap;
+    }
+    return Arrays.copyOf(candidates, n);
+  }
+
+  /**
+   * Sends a message, running the action once it arrives
+   */
+  private void send(int from, int to, long size, Runnable action) {
+    bytes += size;
+    messages++;
+    schedule(now + link.delay(from, to, size), action);
+  }
+
+  /**
+   * Both peers send their whole set, like the "full" exchange mode
+   */
+  private void full(int peer, int target, long key) {
+    BitSet pushed = (BitSet) sets[peer].clone();
+    send(peer, target, MESSAGE_HEADER + (long) pushed.cardinality() * SIM_WORD_BYTES, () -> {
+      merge(target, pushed);
+      BitSet pulled = (BitSet) sets[target].clone();
+      send(target, peer, MESSAGE_HEADER + (long) pulled.cardinality() * SIM_WORD_BYTES, () -> {
+        merge(peer, pulled);
+        finish(peer, target, key);
+      });
+    });
+  }
+
+  /**
+   * Estimates a MerkleExchange: one round trip per level while digests differ,
+   * over as many nodes as the difference can touch, then the words of the
+   * differing buckets one way and the missing ones back
+   */
+  private void merkle(int peer, int target, long key) {
+    merkleLevel(peer, target, key, 0);
+  }
+
+  private void merkleLevel(int peer, int target, long key, int level) {
+    BitSet difference = (BitSet) sets[peer].clone();
+    difference.xor(sets[target]);
+    int differing = difference.cardinality();
+    long nodes = Math.min(1L << (MerkleTree.FANOUT_BITS * level), level == 0 ? 1 : (long) differing * MerkleTree.FANOUT);
+
+    send(peer, target, MESSAGE_HEADER + nodes * DIGEST_BYTES, () -> {
+      send(target, peer, MESSAGE_HEADER + nodes, () -> {
+        if (differing == 0) {
+          finish(peer, target, key);
+        } else if (level < MerkleTree.DEPTH) {
+          merkleLevel(peer, target, key, level + 1);
+        } else {
+          merkleWords(peer, target, key, Math.min(differing, MerkleTree.LEAVES));
+        }
+      });
+    });
+  }
+
+  private void merkleWords(int peer, int target, long key, int buckets) {
+    BitSet pushed = (BitSet) sets[peer].clone();
+    long words = (long) pushed.cardinality() * buckets / MerkleTree.LEAVES + 1;
+    send(peer, target, MESSAGE_HEADER + words * SIM_WORD_BYTES, () -> {
+      BitSet missing = (BitSet) sets[target].clone();
+      missing.andNot(pushed);
+      merge(target, pushed);
+      send(target, peer, MESSAGE_HEADER + (long) missing.cardinality() * SIM_WORD_BYTES, () -> {
+        merge(peer, missing);
+        finish(peer, target, key);
+      });
+    });
+  }
+
+  private void finish(int peer, int target, long key) {
+    busy.remove(key);
+    exchanges[peer]++;
+    exchanges[target]++;
+  }
+
+  private void progress(double interval) {
+    System.out.printf("t=%8.1fs  %d words, %d everywhere, %.1f MB sent\n", now / 1000, generated, everywhere,
+        bytes / 1e6);
+    schedule(now + interval, () -> progress(interval));
+  }
+
+  public void report(boolean converged) {
+    System.out.printf("peers: %d (%s), exchange: %s, fanout: %d, push-pull lambda: %s/min\n", peers, SIM_TOPOLOGY,
+        SIM_EXCHANGE, FANOUT, PUSH_PULL_LAMBDA);
+    System.out.printf("words generated: %d (the last at %.1fs)\n", generated, lastWord / 1000);
+    if (converged)
+      System.out.printf("converged at %.1fs, %.1fs after the last word\n", now / 1000, (now - lastWord) / 1000);
+    else
+      System.out.printf("not converged at %.1fs: %d of %d words everywhere\n", now / 1000, everywhere, generated);
+
+    if (!spread.isEmpty()) {
+      double[] times = spread.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+      System.out.printf("time for a word to reach every peer: p50 %.1fs, p99 %.1fs, max %.1fs\n",
+          times[times.length / 2] / 1000, times[(int) (times.length * 0.99)] / 1000, times[times.length - 1] / 1000);
+    }
+
+    SampleValues perPeer = new SampleValues("exchanges per peer");
+    for (long n : exchanges)
+      perPeer.add(n);
+    System.out.printf("exchanges per peer: avg %.1f, min %.0f, max %.0f\n", perPeer.mean(), perPeer.min(),
+        perPeer.max());
+    System.out.printf("sent: %.2f MB in %d messages, %.1f KB per peer\n", bytes / 1e6, messages,
+        bytes / 1e3 / peers);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ReadConfigurationFileProp(args.length > 0 ? args[0] : "conf_simulation.prop");
+
+    Random random = new Random(SIM_SEED);
+    int[][] neighbours = Topology(SIM_TOPOLOGY, SIM_PEERS, SIM_DEGREE, random);
+    LinkModel link = new UniformLink(SIM_LATENCY, SIM_JITTER, SIM_BANDWIDTH, new Random(random.nextLong()));
+    Simulator simulator = new Simulator(SIM_PEERS, neighbours, link, random);
+
+    long start = System.nanoTime();
+    boolean converged = simulator.run(SIM_WORDS_FOR, SIM_MAX_TIME, SIM_REPORT_INTERVAL);
+    simulator.report(converged);
+    System.out.printf("simulated in %.1fs\n", (System.nanoTime() - start) / 1e9);
+  }
+}
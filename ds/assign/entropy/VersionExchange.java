@@ -0,0 +1,185 @@
+package ds.assign.entropy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Push-pull over version vectors (see VersionLog). The initiator sends, for
+ * every origin, the epoch and the number of words it holds; the responder
+ * answers with its own vector and the words the initiator is missing ("origin
+ * X's words after n"), and the initiator then sends the ones the responder is
+ * missing. Nothing is hashed or sorted, and what goes over the wire is the new
+ * words plus a vector.
+ *
+ * Words that never went through a version exchange (learned from a rumor, or
+ * from before an origin's restart) aren't in the logs, so when asked to audit,
+ * both sides follow with a MerkleExchange over the same connection, which ends
+ * after comparing the roots when they agree
+ */
+class VersionExchange {
+  public static final byte MAGIC = 'V';
+
+  /**
+   * Runs the initiator's side of the exchange
+   *
+   * @param audit Whether to follow with a MerkleExchange
+   * @return The number of words learned from the other peer, and the number of
+   *         words it learned from us
+   */
+  public static Pair<Integer, Integer> Initiate(DataInputStream in, DataOutputStream out, boolean audit)
+      throws IOException {
+    out.writeByte(MAGIC);
+    long[] epochs = new long[WordSet.ORIGINS];
+    int[] sizes = new int[WordSet.ORIGINS];
+    ReadVector(epochs, sizes);
+    WriteVector(out, epochs, sizes);
+    out.flush();
+
+    ReadVector(in, epochs, sizes);
+    int learned = ReadDeltas(in);
+    WriteDeltas(out, epochs, sizes);
+    out.writeBoolean(audit);
+    out.flush();
+    int theyLearned = in.readInt();
+
+    if (audit) {
+      Pair<Integer, Integer> merkle = MerkleExchange.Initiate(in, out);
+      learned += merkle.getKey();
+      theyLearned += merkle.getValue();
+    }
+    return new Pair<>(learned, theyLearned);
+  }
+
+  /**
+   * Runs the responder's side of the exchange, after MAGIC was read
+   *
+   * @return The number of words learned from the other peer
+   */
+  public static int Respond(DataInputStream in, DataOutputStream out) throws IOException {
+    long[] theirEpochs = new long[WordSet.ORIGINS];
+    int[] theirSizes = new int[WordSet.ORIGINS];
+    ReadVector(in, theirEpochs, theirSizes);
+
+    long[] epochs = new long[WordSet.ORIGINS];
+    int[] sizes = new int[WordSet.ORIGINS];
+    ReadVector(epochs, sizes);
+    WriteVector(out, epochs, sizes);
+    WriteDeltas(out, theirEpochs, theirSizes);
+    out.flush();
+
+    int learned = ReadDeltas(in);
+    boolean audit = in.readBoolean();
+    out.writeInt(learned);
+    out.flush();
+
+    if (audit) {
+      if (in.readByte() != MerkleExchange.MAGIC)
+        throw new IOException("expected a merkle exchange for the audit");
+      learned += MerkleExchange.Respond(in, out);
+    }
+    return learned;
+  }
+
+  private static void ReadVector(long[] epochs, int[] sizes) {
+    Peer.word_lock.lock();
+    try {
+      for (int i = 0; i < WordSet.ORIGINS; i++) {
+        epochs[i] = Peer.versions.epoch(i);
+        sizes[i] = Peer.versions.size(i);
+      }
+    } finally {
+      Peer.word_lock.unlock();
+    }
+  }
+
+  private static void WriteVector(DataOutputStream out, long[] epochs, int[] sizes) throws IOException {
+    for (int i = 0; i < WordSet.ORIGINS; i++) {
+      out.writeLong(epochs[i]);
+      out.writeInt(sizes[i]);
+    }
+  }
+
+  private static void ReadVector(DataInputStream in, long[] epochs, int[] sizes) throws IOException {
+    for (int i = 0; i < WordSet.ORIGINS; i++) {
+      epochs[i] = in.readLong();
+      sizes[i] = in.readInt();
+    }
+  }
+
+  /**
+   * Writes, for every origin, the words the other peer is missing: all of them
+   * if it knows an older epoch, otherwise the ones after its size
+   *
+   * int count, then byte origin, long epoch, int from and a word list each
+   */
+  private static void WriteDeltas(DataOutputStream out, long[] theirEpochs, int[] theirSizes) throws IOException {
+    List<Integer> origins = new ArrayList<>();
+    List<Long> epochs = new ArrayList<>();
+    List<Integer> froms = new ArrayList<>();
+    List<List<String>> deltas = new ArrayList<>();
+
+    Peer.word_lock.lock();
+    try {
+      for (int i = 0; i < WordSet.ORIGINS; i++) {
+        long epoch = Peer.versions.epoch(i);
+        int size = Peer.versions.size(i);
+        int from;
+        if (epoch > theirEpochs[i])
+          from = 0;
+        else if (epoch == theirEpochs[i] && size > theirSizes[i])
+          from = theirSizes[i];
+        else
+          continue;
+        if (size == from)
+          continue;
+        origins.add(i);
+        epochs.add(epoch);
+        froms.add(from);
+        deltas.add(Peer.versions.after(i, from));
+      }
+    } finally {
+      Peer.word_lock.unlock();
+    }
+
+    out.writeInt(deltas.size());
+    for (int i = 0; i < deltas.size(); i++) {
+      out.writeByte(origins.get(i));
+      out.writeLong(epochs.get(i));
+      out.writeInt(froms.get(i));
+      WordSetCodec.Write(out, deltas.get(i), Peer.WORD_COMPRESSION);
+    }
+  }
+
+  /**
+   * Adds the words of the other peer's deltas and logs them
+   *
+   * @return How many of them were new
+   */
+  private static int ReadDeltas(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0 || n > WordSet.ORIGINS)
+      throw new IOException(n + " origins in a version delta");
+
+    int learned = 0;
+    for (int i = 0; i < n; i++) {
+      int origin = in.readByte();
+      long epoch = in.readLong();
+      int from = in.readInt();
+      if (origin < 0 || origin >= WordSet.ORIGINS || from < 0)
+        throw new IOException("malformed delta of origin " + origin + " from " + from);
+      List<String> words = WordSetCodec.Read(in);
+
+      learned += Peer.AddWords(words);
+      Peer.word_lock.lock();
+      try {
+        Peer.versions.received(origin, epoch, from, words);
+      } finally {
+        Peer.word_lock.unlock();
+      }
+    }
+    return learned;
+  }
+}
@@ -0,0 +1,109 @@
+package ds.assign.entropy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Words of every origin (the digit they start with) in the order the origin
+ * generated them. An origin numbers its words 1, 2, 3... within an epoch, which
+ * it picks when it starts, so the words are never numbered twice after a
+ * restart. A newer epoch replaces an older one.
+ *
+ * The highest number held per origin is the version vector: a peer only needs
+ * the words of origin X after n to catch up (see VersionExchange). A peer logs
+ * every word with its own digit, whatever way it was learned; the words of the
+ * other origins are logged as they come through version exchanges. Guarded by
+ * Peer.word_lock
+ */
+class VersionLog {
+  final WordSet set;
+  final int self; // our origin
+  final long[] epochs = new long[WordSet.ORIGINS]; // 0 while unknown
+  final int[][] codes = new int[WordSet.ORIGINS][];
+  final int[] sizes = new int[WordSet.ORIGINS];
+  final List<Map<Integer, String>> others = new ArrayList<>(); // words that can't be encoded, by position
+
+  public VersionLog(WordSet set, int self, long epoch) {
+    this.set = set;
+    this.self = self;
+    for (int i = 0; i < WordSet.ORIGINS; i++) {
+      codes[i] = new int[16];
+      others.add(new HashMap<>());
+    }
+    epochs[self] = epoch;
+  }
+
+  /**
+   * @return The origin of the word, or -1
+   */
+  public static int Origin(String word) {
+    if (word.isEmpty() || word.charAt(0) < '0' || word.charAt(0) > '9')
+      return -1;
+    return word.charAt(0) - '0';
+  }
+
+  /**
+   * Numbers a new word of ours
+   *
+   * @param code Its WordSet.encode(word)
+   */
+  public void added(String word, int code) {
+    if (Origin(word) == self)
+      append(self, word, code);
+  }
+
+  public long epoch(int origin) {
+    return epochs[origin];
+  }
+
+  /**
+   * @return How many words of the origin we hold, in order
+   */
+  public int size(int origin) {
+    return sizes[origin];
+  }
+
+  /**
+   * @return The words of the origin numbered after from
+   */
+  public List<String> after(int origin, int from) {
+    List<String> words = new ArrayList<>(Math.max(0, sizes[origin] - from));
+    for (int i = from; i < sizes[origin]; i++) {
+      int code = codes[origin][i];
+      words.add(code < 0 ? others.get(origin).get(i) : set.decode(code));
+    }
+    return words;
+  }
+
+  /**
+   * Logs the words of another origin numbered from + 1 on. A newer epoch
+   * starts the origin's log over (from must then be 0); older epochs, and
+   * positions we already hold, are ignored
+   */
+  public void received(int origin, long epoch, int from, List<String> words) {
+    if (origin == self || epoch < epochs[origin])
+      return;
+    if (epoch > epochs[origin]) {
+      if (from != 0)
+        return;
+      epochs[origin] = epoch;
+      sizes[origin] = 0;
+      others.get(origin).clear();
+    }
+    if (from > sizes[origin])
+      return;
+    for (int i = sizes[origin] - from; i < words.size(); i++)
+      append(origin, words.get(i), set.encode(words.get(i)));
+  }
+
+  private void append(int origin, String word, int code) {
+    if (sizes[origin] == codes[origin].length)
+      codes[origin] = Arrays.copyOf(codes[origin], codes[origin].length * 2);
+    if (code < 0)
+      others.get(origin).put(sizes[origin], word);
+    codes[origin][sizes[origin]++] = code;
+  }
+}
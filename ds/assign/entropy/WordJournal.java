@@ -0,0 +1,229 @@
+package ds.assign.entropy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the word set on disk, in DATA_DIR/<peer>, so a restarted peer doesn't
+ * have to pull the whole set again:
+ *
+ * journal-<n> every word learned, appended to a memory-mapped file as
+ *             short length, int crc32, UTF-8 bytes
+ * snapshot    the whole set (a WordSetCodec list) and the first journal that
+ *             isn't in it
+ *
+ * Every SNAPSHOT_INTERVAL ms, if words were journaled, the journal is rotated,
+ * the set is written to a new snapshot (atomically) and the older journals are
+ * deleted. On startup the snapshot and the journals after it are read back;
+ * records that were cut short by a crash end the journal. Merkle and IBLT
+ * exchanges then only carry what the neighbours learned meanwhile
+ */
+class WordJournal implements WordListener, Runnable {
+  static final int CHUNK = 1 << 20; // journal grows by this much at a time
+  static final int HEADER = 2 + 4;
+
+  final Path dir;
+  final long interval; // ms
+
+  private long generation;
+  private FileChannel channel;
+  private MappedByteBuffer journal;
+  private long mapped; // file position of journal's first byte
+  private int journaled = 0; // words since the last snapshot
+
+  public WordJournal(String dir, long interval) throws IOException {
+    this.dir = Paths.get(dir);
+    this.interval = interval;
+    Files.createDirectories(this.dir);
+  }
+
+  /**
+   * Reads the words back from the snapshot and the journals, and opens the
+   * journal that new words go to. Must be called before the journal is used
+   */
+  public synchronized List<String> recover() throws IOException {
+    List<String> recovered = new ArrayList<>();
+    long first = 0;
+
+    Path snapshot = dir.resolve("snapshot");
+    if (Files.exists(snapshot)) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+        first = in.readLong();
+        recovered.addAll(WordSetCodec.Read(in));
+      }
+    }
+
+    /*
+     * new words go to a fresh journal, after anything a crash may have left in
+     * the last one
+     */
+    int snapshotted = recovered.size();
+    generation = first;
+    for (long n : journals()) {
+      if (n < first)
+        continue;
+      replay(path(n), recovered);
+      generation = n + 1;
+    }
+
+    channel = FileChannel.open(path(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    map(0);
+    journaled = recovered.size() - snapshotted;
+    return recovered;
+  }
+
+  @Override
+  public synchronized void wordsAdded(List<String> added, int size) {
+    try {
+      for (String word : added) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > 0xffff)
+          continue;
+        if (journal.remaining() < HEADER + bytes.length)
+          map(mapped + journal.position());
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        journal.putShort((short) bytes.length);
+        journal.putInt((int) crc.getValue());
+        journal.put(bytes);
+      }
+      journaled += added.size();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(interval);
+        snapshot();
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Writes the whole set to the snapshot, if anything was journaled since the
+   * last one
+   */
+  public void snapshot() throws IOException {
+    WordSet.Snapshot words;
+    long first;
+    synchronized (this) {
+      if (journaled == 0)
+        return;
+      /*
+       * words are journaled after they're in the set, so anything missing from
+       * this snapshot goes to the new journal
+       */
+      words = Peer.words.snapshot();
+      journal.force();
+      channel.close();
+      first = ++generation;
+      channel = FileChannel.open(path(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      map(0);
+      journaled = 0;
+    }
+
+    Path temporary = dir.resolve("snapshot.tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+      out.writeLong(first);
+      WordSetCodec.Write(out, words, true);
+    }
+    try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      file.force(true);
+    }
+    Files.move(temporary, dir.resolve("snapshot"), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    for (long n : journals()) {
+      if (n < first)
+        Files.deleteIfExists(path(n));
+    }
+  }
+
+  private Path path(long generation) {
+    return dir.resolve("journal-" + generation);
+  }
+
+  /**
+   * @return Generations of the journals in the directory, in order
+   */
+  private List<Long> journals() throws IOException {
+    List<Long> generations = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*")) {
+      for (Path file : files) {
+        try {
+          generations.add(Long.parseLong(file.getFileName().toString().substring("journal-".length())));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+      }
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  /**
+   * Adds the words of a journal to the list, up to the first record that isn't
+   * whole
+   */
+  private static void replay(Path file, List<String> words) throws IOException {
+    try (FileChannel channel = FileChannel.open(file)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      CRC32 crc = new CRC32();
+      while (buffer.remaining() >= HEADER) {
+        try {
+          int length = buffer.getShort() & 0xffff;
+          int expected = buffer.getInt();
+          if (length == 0)
+            return;
+          byte[] bytes = new byte[length];
+          buffer.get(bytes);
+          crc.reset();
+          crc.update(bytes);
+          if ((int) crc.getValue() != expected)
+            return;
+          words.add(new String(bytes, StandardCharsets.UTF_8));
+        } catch (BufferUnderflowException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps the next CHUNK bytes of the journal from position on, growing the file
+   */
+  private void map(long position) throws IOException {
+    if (journal != null)
+      journal.force();
+    journal = channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK);
+    mapped = position;
+  }
+}
@@ -0,0 +1,16 @@
+package ds.assign.entropy;
+
+import java.util.List;
+
+/**
+ * Told about every change of the word set, see Peer.AddListener
+ */
+interface WordListener {
+  /**
+   * Called after new words were added, without holding word_lock
+   *
+   * @param added Words that weren't in the set before
+   * @param size  Size of the set right after they were added
+   */
+  void wordsAdded(List<String> added, int size);
+}
@@ -0,0 +1,130 @@
+package ds.assign.entropy;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.TreeSet;
+
+import ds.common.Lexicon;
+
+/**
+ * Set of words, dictionary-encoded. A peer's words are its digit (port % 10)
+ * followed by a word of the lexicon, so each one is kept as the position of that
+ * word in the lexicon, in a RoaringBitmap per digit: a few bytes or bits per
+ * word instead of a String. Words are only decoded back to text when they're
+ * read. Anything that doesn't fit this shape (a word from a peer with another
+ * words file, say) is kept as a String on the side.
+ *
+ * Snapshots copy the bitmaps, which only takes a reference per group of 65536
+ * indices (see RoaringBitmap.copy), and can then be read, written to the
+ * network or printed for as long as needed without holding any lock, while
+ * words keep being added
+ */
+class WordSet {
+  public static final int ORIGINS = 10;
+  public static final int ORIGIN_BITS = 4;
+  public static final int MAX_INDEX = 1 << (31 - ORIGIN_BITS);
+
+  private final Lexicon lexicon;
+  private final RoaringBitmap[] origins = new RoaringBitmap[ORIGINS];
+  private final TreeSet<String> others = new TreeSet<>();
+
+  /**
+   * @param lexicon Words the set is encoded against (null to keep plain Strings)
+   */
+  public WordSet(Lexicon lexicon) {
+    this.lexicon = lexicon;
+    for (int i = 0; i < ORIGINS; i++)
+      origins[i] = new RoaringBitmap();
+  }
+
+  /**
+   * @return The word packed as lexicon index << ORIGIN_BITS | origin digit, or
+   *         -1 if it can't be encoded
+   */
+  public int encode(String word) {
+    if (lexicon == null || word.isEmpty() || word.charAt(0) < '0' || word.charAt(0) > '9')
+      return -1;
+    int index = lexicon.indexOf(word.substring(1));
+    if (index < 0 || index >= MAX_INDEX)
+      return -1;
+    return index << ORIGIN_BITS | (word.charAt(0) - '0');
+  }
+
+  public String decode(int code) {
+    return (code & ((1 << ORIGIN_BITS) - 1)) + lexicon.get(code >>> ORIGIN_BITS);
+  }
+
+  /**
+   * @param code The word's encode(word), worked out by the caller once for
+   *             everything that keeps it
+   * @return Whether the word was new
+   */
+  public synchronized boolean add(String word, int code) {
+    if (code < 0)
+      return others.add(word);
+    return origins[code & ((1 << ORIGIN_BITS) - 1)].add(code >>> ORIGIN_BITS);
+  }
+
+  public synchronized int size() {
+    int size = others.size();
+    for (RoaringBitmap origin : origins)
+      size += origin.cardinality();
+    return size;
+  }
+
+  public synchronized Snapshot snapshot() {
+    RoaringBitmap[] copies = new RoaringBitmap[ORIGINS];
+    for (int i = 0; i < ORIGINS; i++)
+      copies[i] = origins[i].copy();
+    return new Snapshot(copies, others.toArray(new String[0]));
+  }
+
+  /**
+   * The words of the set at the time it was taken: the encoded ones by digit
+   * and in lexicon order (sorted, for a sorted words file), then the others
+   */
+  class Snapshot extends AbstractCollection<String> {
+    final RoaringBitmap[] origins;
+    final String[] others;
+
+    Snapshot(RoaringBitmap[] origins, String[] others) {
+      this.origins = origins;
+      this.others = others;
+    }
+
+    @Override
+    public int size() {
+      int size = others.length;
+      for (RoaringBitmap origin : origins)
+        size += origin.cardinality();
+      return size;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        int origin = 0;
+        PrimitiveIterator.OfInt indices = origins[0].iterator();
+        int other = 0;
+
+        @Override
+        public boolean hasNext() {
+          while (!indices.hasNext() && origin < ORIGINS - 1)
+            indices = origins[++origin].iterator();
+          return indices.hasNext() || other < others.length;
+        }
+
+        @Override
+        public String next() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          if (indices.hasNext())
+            return decode(indices.nextInt() << ORIGIN_BITS | origin);
+          return others[other++];
+        }
+      };
+    }
+  }
+}
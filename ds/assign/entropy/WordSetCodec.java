@@ -0,0 +1,180 @@
+package ds.assign.entropy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary format for lists of words, meant for sorted ones:
+ *
+ * MAGIC, VERSION, flags, varint count, varint body length, body
+ *
+ * where the body has, for every word, the number of leading UTF-8 bytes it
+ * shares with the previous word and the rest of its bytes (both lengths as
+ * varints). With COMPRESSED set in the flags, the body is deflated, preceded by
+ * its length once inflated. Sorted words share long prefixes, so this is a
+ * fraction of the size of a serialized TreeSet
+ */
+class WordSetCodec {
+  public static final byte MAGIC = 'W';
+  public static final byte VERSION = 1;
+  public static final int COMPRESSED = 1;
+
+  /* bodies smaller than this aren't worth deflating */
+  public static final int COMPRESS_THRESHOLD = 512;
+  public static final int MAX_BODY = 1 << 28;
+
+  /**
+   * @param words    Words to be written, best sorted
+   * @param compress Whether the body may be deflated
+   */
+  public static void Write(DataOutputStream out, Collection<String> words, boolean compress) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] previous = new byte[0];
+    for (String word : words) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      int shared = 0;
+      int max = Math.min(previous.length, bytes.length);
+      while (shared < max && previous[shared] == bytes[shared])
+        shared++;
+      WriteVarint(body, shared);
+      WriteVarint(body, bytes.length - shared);
+      body.write(bytes, shared, bytes.length - shared);
+      previous = bytes;
+    }
+
+    byte[] raw = body.toByteArray();
+    boolean deflate = compress && raw.length >= COMPRESS_THRESHOLD;
+
+    out.writeByte(MAGIC);
+    out.writeByte(VERSION);
+    out.writeByte(deflate ? COMPRESSED : 0);
+    WriteVarint(out, words.size());
+    if (!deflate) {
+      WriteVarint(out, raw.length);
+      out.write(raw);
+      return;
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 64);
+    byte[] chunk = new byte[8192];
+    while (!deflater.finished())
+      compressed.write(chunk, 0, deflater.deflate(chunk));
+    deflater.end();
+
+    WriteVarint(out, compressed.size());
+    WriteVarint(out, raw.length);
+    compressed.writeTo(out);
+  }
+
+  /**
+   * @return The words, in the order they were written
+   * @throws IOException When the stream isn't a word list of a known version
+   */
+  public static List<String> Read(DataInputStream in) throws IOException {
+    if (in.readByte() != MAGIC)
+      throw new IOException("not a word list");
+    byte version = in.readByte();
+    if (version != VERSION)
+      throw new IOException("unsupported word list version " + version);
+    int flags = in.readByte();
+    int count = ReadVarint(in);
+    int length = ReadVarint(in);
+    if (count < 0)
+      throw new IOException("word list of " + count + " words");
+    if (length < 0 || length > MAX_BODY)
+      throw new IOException("word list of " + length + " bytes");
+
+    byte[] body;
+    if ((flags & COMPRESSED) == 0) {
+      body = new byte[length];
+      in.readFully(body);
+    } else {
+      int rawLength = ReadVarint(in);
+      if (rawLength < 0 || rawLength > MAX_BODY)
+        throw new IOException("word list of " + rawLength + " bytes");
+      byte[] compressed = new byte[length];
+      in.readFully(compressed);
+      body = new byte[rawLength];
+
+      Inflater inflater = new Inflater();
+      inflater.setInput(compressed);
+      try {
+        if (inflater.inflate(body) != rawLength)
+          throw new IOException("truncated word list");
+      } catch (DataFormatException e) {
+        throw new IOException("corrupted word list", e);
+      } finally {
+        inflater.end();
+      }
+    }
+
+    if (count > body.length / 2)
+      throw new IOException(count + " words in a word list of " + body.length + " bytes");
+
+    /*
+     * every word is rebuilt over the bytes of the previous one
+     */
+    List<String> words = new ArrayList<>(count);
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+    byte[] word = new byte[64];
+    try {
+      for (int i = 0; i < count; i++) {
+        int shared = ReadVarint(buffer);
+        int rest = ReadVarint(buffer);
+        if (shared + rest > word.length)
+          word = Arrays.copyOf(word, Math.max(word.length * 2, shared + rest));
+        buffer.get(word, shared, rest);
+        words.add(new String(word, 0, shared + rest, StandardCharsets.UTF_8));
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IOException("corrupted word list", e);
+    }
+    return words;
+  }
+
+  static void WriteVarint(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int ReadVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return value;
+    }
+    throw new IOException("malformed varint");
+  }
+
+  private static int ReadVarint(ByteBuffer in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return value;
+    }
+    throw new IOException("malformed varint");
+  }
+}
@@ -0,0 +1,222 @@
+package ds.assign.ring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import ds.common.Metrics;
+
+/**
+ * Long-lived connection to the calculator server. A whole batch of operations
+ * is written as a single batch request and the results are read back in the
+ * same order, so the TCP handshake is paid once per session instead of once
+ * per operation, and the server evaluates the batch column-wise.
+ *
+ * In binary mode (SERVER_BINARY in conf_ring.prop) the session negotiates the
+ * server's binary frames right after connecting, and the batch columns are
+ * written as they are. Otherwise they are only formatted as text here, on their
+ * way to the server.
+ *
+ * Connecting gives up after connectTimeout ms, and a batch gives up waiting
+ * for its results timeout ms after it was sent, so a hung server can't keep
+ * the token forever
+ */
+class CalculatorSession {
+    public static final String BINARY_HANDSHAKE = "binary";
+    public static final String BATCH = "batch";
+    public static final byte OP_BATCH = 4;
+    public static final int MAX_BATCH = 1 << 16;
+
+    String host;
+    int port;
+    boolean binary;
+    int connectTimeout; // ms
+    int timeout; // ms, for the results of a batch
+    long deadline; // nanoTime by which the current batch must have its results
+
+    Socket socket;
+    BufferedReader in;
+    PrintWriter out;
+    DataInputStream binaryIn;
+    DataOutputStream binaryOut;
+
+    public CalculatorSession(String host, int port, boolean binary, int connectTimeout, int timeout) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.connectTimeout = connectTimeout;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends every operation of the batch to the server and waits for all of the
+     * results, which are stored in the batch. Futures of the operations are
+     * completed in order, as each result is read. If the session was dropped by the
+     * server in the meantime, the operations whose results hadn't come back yet
+     * are retried once on a fresh connection (the operations are idempotent, so
+     * resending is safe), and the ones already completed aren't sent again
+     *
+     * @param batch Operations to be sent, in the order they were queued (at most
+     *              MAX_BATCH)
+     * @throws IOException Whenever the server can't be reached
+     */
+    public synchronized void SendReceiveBatch(OperationBatch batch) throws IOException {
+        try {
+            exchange(batch, 0);
+        } catch (IOException e) {
+            close();
+            exchange(batch, batch.completed);
+        }
+    }
+
+    /**
+     * Sends the operations of the batch from the given one on
+     */
+    private void exchange(OperationBatch batch, int from) throws IOException {
+        deadline = System.nanoTime() + timeout * 1_000_000L;
+        connect();
+        try {
+            if (binary)
+                exchangeBinary(batch, from);
+            else
+                exchangeText(batch, from);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void exchangeText(OperationBatch batch, int from) throws IOException {
+        /*
+         * send the whole batch as a single request line
+         */
+        int n = batch.size - from;
+        out.print(BATCH + ":" + n);
+        for (int i = from; i < batch.size; i++) {
+            out.print(':');
+            out.print(OperationQueue.NAMES[batch.ops[i]]);
+            out.print(':');
+            out.print(batch.x[i]);
+            out.print(':');
+            out.print(batch.y[i]);
+        }
+        out.println();
+        out.flush();
+        if (out.checkError())
+            throw new IOException("connection to server lost while sending");
+
+        /*
+         * receive results, in order, on a single line
+         */
+        String line = in.readLine();
+        if (line == null)
+            throw new IOException("connection to server closed before the results");
+        String[] fields = line.split(":");
+        if (fields.length != n)
+            throw new IOException("expected " + n + " results, got " + fields.length);
+
+        for (int i = from; i < batch.size; i++) {
+            batch.results[i] = Double.parseDouble(fields[i - from]);
+            batch.complete(i);
+        }
+    }
+
+    private void exchangeBinary(OperationBatch batch, int from) throws IOException {
+        int n = batch.size - from;
+        binaryOut.writeByte(OP_BATCH);
+        binaryOut.writeInt(n);
+        binaryOut.write(batch.ops, from, n);
+        for (int i = from; i < batch.size; i++)
+            binaryOut.writeDouble(batch.x[i]);
+        for (int i = from; i < batch.size; i++)
+            binaryOut.writeDouble(batch.y[i]);
+        binaryOut.flush();
+
+        for (int i = from; i < batch.size; i++) {
+            batch.results[i] = binaryIn.readDouble();
+            batch.complete(i);
+        }
+    }
+
+    private void connect() throws IOException {
+        if (socket != null)
+            return;
+
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(InetAddress.getByName(host), port), connectTimeout);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(timeout);
+        socket = s;
+        OutputStream socketOut = Metrics.Counted(socket.getOutputStream(), Peer.SERVER_BYTES_OUT);
+        InputStream socketIn = Metrics.Counted(new FilterInputStream(socket.getInputStream()) {
+            /*
+             * every read only waits for what is left until the deadline, so
+             * a server that answers byte by byte can't stretch the batch either
+             */
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0)
+                    throw new SocketTimeoutException("no results from the server in " + timeout + " ms");
+                socket.setSoTimeout((int) left);
+                return super.read(b, off, len);
+            }
+        }, Peer.SERVER_BYTES_IN);
+
+        if (!binary) {
+            out = new PrintWriter(socketOut, false);
+            in = new BufferedReader(new InputStreamReader(socketIn));
+            return;
+        }
+
+        binaryOut = new DataOutputStream(new BufferedOutputStream(socketOut));
+        binaryIn = new DataInputStream(new BufferedInputStream(socketIn));
+        binaryOut.writeBytes(BINARY_HANDSHAKE + "\n");
+        binaryOut.flush();
+
+        StringBuilder reply = new StringBuilder();
+        int b;
+        while ((b = binaryIn.read()) != '\n') {
+            if (b < 0)
+                throw new IOException("server closed the connection during the handshake");
+            reply.append((char) b);
+        }
+        if (!reply.toString().equals(BINARY_HANDSHAKE)) {
+            close();
+            throw new IOException("server doesn't support binary frames: " + reply);
+        }
+    }
+
+    public synchronized void close() {
+        if (socket == null)
+            return;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        socket = null;
+        in = null;
+        out = null;
+        binaryIn = null;
+        binaryOut = null;
+    }
+}
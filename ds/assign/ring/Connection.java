@@ -0,0 +1,132 @@
+package ds.assign.ring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import ds.common.Metrics;
+
+/**
+ * Represents a connection with another peer. This class is called whenever
+ * another peer connects to us via the Server class
+ */
+class Connection implements Runnable {
+    String clientAddress;
+    Socket clientSocket;
+    Logger logger;
+
+    public Connection(String clientAddress, Socket clientSocket, Logger logger) {
+        this.clientAddress = clientAddress;
+        this.clientSocket = clientSocket;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        /*
+         * prepare socket I/O channels
+         */
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Metrics.Counted(clientSocket.getInputStream(), Peer.BYTES_IN)));
+
+            /*
+             * The predecessor keeps this connection open, every line is a token frame
+             */
+            String command;
+            while ((command = in.readLine()) != null) {
+                Token token = Token.Parse(command);
+                if (token == null) {
+                    logger.warning("ignoring unknown frame from " + clientAddress + ": " + command);
+                    continue;
+                }
+                if (token.id < 0 || token.id >= Peer.TOKENS) {
+                    logger.warning("ignoring token " + token.id + ", this ring has " + Peer.TOKENS + " tokens");
+                    continue;
+                }
+                if (!Peer.GUARDS[token.id].accept(token)) {
+                    logger.info("dropping stale copy of token " + token.id + " (epoch " + token.epoch + ")");
+                    continue;
+                }
+
+                /*
+                 * every token is handled on its own worker, so a peer can hold
+                 * several tokens (and talk to several servers) at once
+                 */
+                Peer.TOKEN_WORKERS[token.id].execute(() -> {
+                    try {
+                        HandleToken(token, logger);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+
+            /*
+             * close connection
+             */
+            clientSocket.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * We got the token, so we send our queued operations to the server and then
+     * pass it on to the successor
+     *
+     * @param token  Token received from the predecessor (or regenerated by us)
+     * @param logger Logger of this peer
+     */
+    public static void HandleToken(Token token, Logger logger) throws Exception {
+        long acquired = System.nanoTime();
+        TokenScheduler scheduler = Peer.SCHEDULERS[token.id];
+        int budget = scheduler.startVisit();
+        int sent = 0;
+        long batchTime = 0;
+
+        OperationBatch batch = Peer.BATCHES[token.id];
+
+        while (sent < budget && Peer.HOLD_POLICY.canDrain(acquired)) {
+            if (Peer.serverOperations.drain(batch, Math.min(budget - sent, CalculatorSession.MAX_BATCH)) == 0)
+                break;
+
+            System.out.println("Got token " + token.id + ", sending " + batch.size + " things to server");
+            sent += batch.size;
+            try {
+                batch.tracer = Peer.LATENCY;
+                batch.acquired = acquired;
+                batch.sent = System.nanoTime();
+                Peer.serverSessions[token.id].SendReceiveBatch(batch);
+                batchTime += System.nanoTime() - batch.sent;
+                for (int i = 0; i < batch.size; i++) {
+                    System.out.printf("%s= %.3f\n", batch.describe(i), batch.results[i]);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                batch.fail(e);
+            }
+        }
+
+        Peer.HOLD_POLICY.holdUntilDue(acquired, sent);
+
+        long held = System.nanoTime() - acquired;
+        Peer.TOKEN_VISITS.increment();
+        Peer.TOKEN_HOLD.record(held);
+        if (sent > 0) {
+            logger.info(String.format("token %d (pass %d) held for %.3f ms, batch of %d operations took %.3f ms",
+                    token.id, token.seq, held / 1e6, sent, batchTime / 1e6));
+        }
+        scheduler.endVisit(sent, Peer.serverOperations.isEmpty(), held);
+        scheduler.report(logger, token.id);
+
+        Token next = token.next();
+        try {
+            Peer.successor.PassToken(next);
+        } finally {
+            Peer.GUARDS[token.id].released(next);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ds.assign.ring;
+
+import java.util.logging.Logger;
+
+import ds.common.LatencyHistogram;
+import ds.common.Metrics;
+
+/**
+ * Per-stage latency of the operations of this peer. Every operation is stamped
+ * when it's queued, when a token is acquired to send it, when its batch is
+ * sent and when its result comes back; the stages are logged every
+ * LATENCY_REPORT_INTERVAL ms:
+ *
+ * token wait: queued until a token holder took it
+ * dispatch:   token acquired until its batch was sent
+ * server:     batch sent until its result came back
+ * total:      queued until its result came back
+ *
+ * The same histograms are the ring.latency.* metrics, which cover everything
+ * since the peer started
+ */
+class LatencyTracer implements Runnable {
+    final LatencyHistogram tokenWait = Metrics.Histogram("ring.latency.token_wait.ns");
+    final LatencyHistogram dispatch = Metrics.Histogram("ring.latency.dispatch.ns");
+    final LatencyHistogram server = Metrics.Histogram("ring.latency.server.ns");
+    final LatencyHistogram total = Metrics.Histogram("ring.latency.total.ns");
+
+    Logger logger;
+    long interval; // ms
+
+    public LatencyTracer(Logger logger, long interval) {
+        this.logger = logger;
+        this.interval = interval;
+    }
+
+    /**
+     * All stamps are System.nanoTime() values. acquired is when the token
+     * arrived; an operation queued after that, for a later batch of the same
+     * visit, didn't wait for the token at all, so the stages still add up to
+     * its total
+     */
+    public void record(long queued, long acquired, long sent, long answered) {
+        acquired = Math.max(acquired, queued);
+        tokenWait.record(acquired - queued);
+        dispatch.record(sent - acquired);
+        server.record(answered - sent);
+        total.record(answered - queued);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            logger.info("latency " + tokenWait.report("token wait") + "; " + dispatch.report("dispatch") + "; "
+                    + server.report("server") + "; " + total.report("total"));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ds.assign.ring;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Operations taken from the queue for one round trip to the calculator server,
+ * kept in primitive columns that are reused from one token visit to the next,
+ * along with the futures of the operations that were submitted with one
+ */
+class OperationBatch {
+    byte[] ops = new byte[64];
+    double[] x = new double[64];
+    double[] y = new double[64];
+    double[] results = new double[64];
+    CompletableFuture<Double>[] futures = OperationQueue.NewFutures(64);
+    long[] queued = new long[64];
+    int size = 0;
+    int completed = 0; // results already back, in order
+
+    /*
+     * latency stamps (nanoTime) shared by the whole batch
+     */
+    LatencyTracer tracer;
+    long acquired;
+    long sent;
+
+    /**
+     * Empties the batch and makes sure it can hold n operations
+     */
+    public void reset(int n) {
+        Arrays.fill(futures, 0, size, null);
+        size = 0;
+        completed = 0;
+        ensureCapacity(n);
+    }
+
+    /**
+     * Grows the columns to hold at least n operations, keeping their contents
+     */
+    public void ensureCapacity(int n) {
+        if (n <= ops.length)
+            return;
+
+        int capacity = Math.max(n, ops.length * 2);
+        ops = Arrays.copyOf(ops, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        results = Arrays.copyOf(results, capacity);
+        futures = Arrays.copyOf(futures, capacity);
+        queued = Arrays.copyOf(queued, capacity);
+    }
+
+    /**
+     * Records the latency of the i-th operation, whose result just came back, and
+     * completes its future, if it has one
+     */
+    public void complete(int i) {
+        completed = i + 1;
+        if (tracer != null)
+            tracer.record(queued[i], acquired, sent, System.nanoTime());
+        if (futures[i] != null)
+            futures[i].complete(results[i]);
+    }
+
+    /**
+     * Fails every future of the batch that wasn't completed yet
+     */
+    public void fail(Throwable cause) {
+        for (int i = 0; i < size; i++) {
+            if (futures[i] != null)
+                futures[i].completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return The i-th operation as an op:x:y request
+     */
+    public String describe(int i) {
+        return OperationQueue.NAMES[ops[i]] + ":" + x[i] + ":" + y[i];
+    }
+}
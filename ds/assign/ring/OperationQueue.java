@@ -0,0 +1,191 @@
+package ds.assign.ring;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of the operations waiting for a token. Operations are packed
+ * into parallel primitive arrays (opcode, first operand, second operand) used
+ * as a ring buffer, with a single producer (the operation generator) and token
+ * holders taking turns as the consumer.
+ *
+ * What happens when the ring buffer is full is set by
+ * OPERATION_QUEUE_OVERFLOW in conf_ring.prop: block waits for room, drop
+ * discards the new operation, and spill keeps it in an unbounded overflow list
+ * that is drained (in order) after the ring buffer
+ */
+class OperationQueue {
+    public static final byte OP_ADD = 0;
+    public static final byte OP_SUB = 1;
+    public static final byte OP_MUL = 2;
+    public static final byte OP_DIV = 3;
+    public static final String[] NAMES = { "add", "sub", "mul", "div" };
+
+    enum Overflow {
+        BLOCK, DROP, SPILL
+    }
+
+    /**
+     * An operation that didn't fit in the ring buffer
+     */
+    static class Spilled {
+        byte op;
+        double x;
+        double y;
+        CompletableFuture<Double> future;
+        long queued;
+
+        Spilled(byte op, double x, double y, CompletableFuture<Double> future, long queued) {
+            this.op = op;
+            this.x = x;
+            this.y = y;
+            this.future = future;
+            this.queued = queued;
+        }
+    }
+
+    final int capacity;
+    final int mask;
+    final byte[] ops;
+    final double[] xs;
+    final double[] ys;
+    final CompletableFuture<Double>[] futures;
+    final long[] queued; // nanoTime each operation was queued at
+    final Overflow overflow;
+
+    volatile long head = 0; // next slot to be consumed, only written by consumers
+    volatile long tail = 0; // next slot to be produced, only written by the producer
+
+    final ConcurrentLinkedQueue<Spilled> spill = new ConcurrentLinkedQueue<>();
+    final Object producerLock = new Object();
+    final Object consumerLock = new Object();
+
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong spilled = new AtomicLong();
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param overflow What to do with new operations while the queue is full
+     */
+    public OperationQueue(int capacity, Overflow overflow) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = slots;
+        this.mask = slots - 1;
+        this.ops = new byte[slots];
+        this.xs = new double[slots];
+        this.ys = new double[slots];
+        this.futures = NewFutures(slots);
+        this.queued = new long[slots];
+        this.overflow = overflow;
+    }
+
+    @SuppressWarnings("unchecked")
+    static CompletableFuture<Double>[] NewFutures(int n) {
+        return (CompletableFuture<Double>[]) new CompletableFuture<?>[n];
+    }
+
+    public static OperationQueue FromProperties(Properties prop) {
+        return new OperationQueue(
+                Integer.parseInt(prop.getProperty("OPERATION_QUEUE_CAPACITY", "4096")),
+                Overflow.valueOf(prop.getProperty("OPERATION_QUEUE_OVERFLOW", "block").toUpperCase()));
+    }
+
+    /**
+     * Queues an operation nobody waits for
+     *
+     * @return Whether the operation was queued (false if it was dropped)
+     */
+    public boolean offer(byte op, double x, double y) {
+        return offer(op, x, y, null);
+    }
+
+    /**
+     * Queues an operation. Producers are serialized, the lock is uncontended
+     * when there's a single one
+     *
+     * @param future Completed with the result once the server answers, or null
+     * @return Whether the operation was queued (false if it was dropped)
+     */
+    public boolean offer(byte op, double x, double y, CompletableFuture<Double> future) {
+        long now = System.nanoTime();
+        synchronized (producerLock) {
+            long t = tail;
+            while (t - head >= capacity || (overflow == Overflow.SPILL && !spill.isEmpty())) {
+                switch (overflow) {
+                    case DROP:
+                        dropped.incrementAndGet();
+                        return false;
+                    case SPILL:
+                        spill.add(new Spilled(op, x, y, future, now));
+                        spilled.incrementAndGet();
+                        return true;
+                    default:
+                        LockSupport.parkNanos(100_000);
+                        break;
+                }
+            }
+
+            int slot = (int) (t & mask);
+            ops[slot] = op;
+            xs[slot] = x;
+            ys[slot] = y;
+            futures[slot] = future;
+            queued[slot] = now;
+            tail = t + 1; // publishes the slot
+            return true;
+        }
+    }
+
+    /**
+     * Moves up to max operations, oldest first, into the batch
+     *
+     * @return Number of operations moved
+     */
+    public int drain(OperationBatch batch, int max) {
+        synchronized (consumerLock) {
+            long h = head;
+            long t = tail;
+            batch.reset((int) Math.min(max, t - h));
+            int n = 0;
+            while (n < max && h < t) {
+                int slot = (int) (h & mask);
+                batch.ops[n] = ops[slot];
+                batch.x[n] = xs[slot];
+                batch.y[n] = ys[slot];
+                batch.futures[n] = futures[slot];
+                futures[slot] = null;
+                batch.queued[n] = queued[slot];
+                n++;
+                h++;
+            }
+            head = h; // frees the slots for the producer
+
+            /*
+             * spilled operations are always newer than the ones in the ring buffer
+             */
+            Spilled s;
+            while (n < max && head == tail && (s = spill.poll()) != null) {
+                batch.ensureCapacity(n + 1);
+                batch.ops[n] = s.op;
+                batch.x[n] = s.x;
+                batch.y[n] = s.y;
+                batch.futures[n] = s.future;
+                batch.queued[n] = s.queued;
+                n++;
+            }
+            batch.size = n;
+            return n;
+        }
+    }
+
+    public boolean isEmpty() {
+        return head == tail && spill.isEmpty();
+    }
+
+    public long size() {
+        return (tail - head) + spill.size();
+    }
+}
@@ -0,0 +1,31 @@
+package ds.assign.ring;
+
+/**
+ * @param <T> First element of the pair
+ * @param <E> Second element of the pair
+ */
+class Pair<T, E> {
+    public T key;
+    public E value;
+
+    public Pair(T key, E value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public T getKey() {
+        return key;
+    }
+
+    public void setKey(T key) {
+        this.key = key;
+    }
+
+    public E getValue() {
+        return value;
+    }
+
+    public void setValue(E value) {
+        this.value = value;
+    }
+}
@@ -1,59 +1,34 @@
 package ds.assign.ring;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import ds.common.LatencyHistogram;
+import ds.common.Metrics;
 import poisson.PoissonProcess;
 
-/**
- * @param <T> First element of the pair
- * @param <E> Second element of the pair
- */
-class Pair<T, E> {
-    public T key;
-    public E value;
-
-    public Pair(T key, E value) {
-        this.key = key;
-        this.value = value;
-    }
-
-    public T getKey() {
-        return key;
-    }
-
-    public void setKey(T key) {
-        this.key = key;
-    }
-
-    public E getValue() {
-        return value;
-    }
-
-    public void setValue(E value) {
-        this.value = value;
-    }
-}
-
 /**
  * Represents a Peer node in a Peer to Peer network
  */
 public class Peer {
     public static String SERVER_HOST = "localhost";
     public static int SERVER_PORT = 40000;
+    public static boolean SERVER_BINARY = false;
+    public static int SERVER_CONNECT_TIMEOUT = 200; // ms
+    public static int SERVER_TIMEOUT = 1000; // ms a batch waits for its results
 
     public static String TARGET_HOST;
     public static int TARGET_PORT;
@@ -65,7 +40,41 @@ public class Peer {
     Logger logger;
 
     static volatile boolean hasToken = false;
-    static ConcurrentLinkedQueue<String> serverOperations = new ConcurrentLinkedQueue<>();
+    static OperationQueue serverOperations;
+    static SuccessorLink successor;
+    static TokenHoldPolicy HOLD_POLICY;
+
+    /*
+     * one calculator server, scheduler and worker thread per token
+     */
+    public static int TOKENS = 1;
+    static CalculatorSession[] serverSessions;
+    static TokenScheduler[] SCHEDULERS;
+    static ExecutorService[] TOKEN_WORKERS;
+    static TokenGuard[] GUARDS;
+    static OperationBatch[] BATCHES;
+    static LatencyTracer LATENCY;
+    public static long LATENCY_REPORT_INTERVAL = 10000;
+
+    /*
+     * metrics, see ds.common.Metrics
+     */
+    public static int METRICS_PORT = 0; // base port, none when 0
+    static final Metrics.Counter CONNECTIONS = Metrics.Counter("ring.connections.accepted");
+    static final Metrics.Counter BYTES_IN = Metrics.Counter("ring.bytes.in");
+    static final Metrics.Counter BYTES_OUT = Metrics.Counter("ring.bytes.out");
+    static final Metrics.Counter SERVER_BYTES_IN = Metrics.Counter("ring.server.bytes.in");
+    static final Metrics.Counter SERVER_BYTES_OUT = Metrics.Counter("ring.server.bytes.out");
+    static final Metrics.Counter TOKEN_VISITS = Metrics.Counter("ring.token.visits");
+    static final LatencyHistogram TOKEN_HOLD = Metrics.Histogram("ring.token.hold.ns");
+
+    /*
+     * token loss detection and successor bypass
+     */
+    public static long TOKEN_TIMEOUT; // ms, twice a lap of the ring by default
+    public static long TOKEN_TIMEOUT_STAGGER = 100;
+    public static int TOKEN_CONNECT_TIMEOUT = 200;
+    public static long TOKEN_RETRY_INTERVAL = 1000;
 
     public Peer(String hostname) {
         host = hostname;
@@ -93,6 +102,9 @@ public class Peer {
 
         SERVER_HOST = prop.getProperty("SERVER_HOST");
         SERVER_PORT = Integer.parseInt(prop.getProperty("SERVER_PORT"));
+        SERVER_BINARY = Boolean.parseBoolean(prop.getProperty("SERVER_BINARY", "false"));
+        SERVER_CONNECT_TIMEOUT = Integer.parseInt(prop.getProperty("SERVER_CONNECT_TIMEOUT", "200"));
+        SERVER_TIMEOUT = Integer.parseInt(prop.getProperty("SERVER_TIMEOUT", "1000"));
 
         // Retrieving values
         int MACHINES = Integer.parseInt(prop.getProperty("MACHINES"));
@@ -104,6 +116,68 @@ public class Peer {
         }
 
         OPERATION_LAMBDA = Integer.parseInt(prop.getProperty("OPERATION_LAMBDA"));
+        serverOperations = OperationQueue.FromProperties(prop);
+        HOLD_POLICY = TokenHoldPolicy.FromProperties(prop);
+
+        /*
+         * token i guards the server at SERVERS.t[i].HOST/PORT, token 0 defaults
+         * to SERVER_HOST/SERVER_PORT
+         */
+        TOKENS = Integer.parseInt(prop.getProperty("TOKENS", "1"));
+        serverSessions = new CalculatorSession[TOKENS];
+        SCHEDULERS = new TokenScheduler[TOKENS];
+        TOKEN_WORKERS = new ExecutorService[TOKENS];
+        GUARDS = new TokenGuard[TOKENS];
+        BATCHES = new OperationBatch[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            String server_host = prop.getProperty("SERVERS.t" + i + ".HOST", i == 0 ? SERVER_HOST : null);
+            String server_port = prop.getProperty("SERVERS.t" + i + ".PORT", i == 0 ? String.valueOf(SERVER_PORT) : null);
+            if (server_host == null || server_port == null)
+                throw new IOException("missing SERVERS.t" + i + ".HOST/PORT for token " + i);
+            serverSessions[i] = new CalculatorSession(server_host, Integer.parseInt(server_port), SERVER_BINARY,
+                    SERVER_CONNECT_TIMEOUT, SERVER_TIMEOUT);
+            SCHEDULERS[i] = TokenScheduler.FromProperties(prop);
+            TOKEN_WORKERS[i] = Executors.newSingleThreadExecutor();
+            GUARDS[i] = new TokenGuard(i);
+            BATCHES[i] = new OperationBatch();
+        }
+
+        LATENCY_REPORT_INTERVAL = Long.parseLong(prop.getProperty("LATENCY_REPORT_INTERVAL", "10000"));
+        METRICS_PORT = Integer.parseInt(prop.getProperty("METRICS_PORT", "0"));
+        TOKEN_TIMEOUT_STAGGER = Long.parseLong(prop.getProperty("TOKEN_TIMEOUT_STAGGER", "100"));
+        TOKEN_CONNECT_TIMEOUT = Integer.parseInt(prop.getProperty("TOKEN_CONNECT_TIMEOUT", "200"));
+
+        /*
+         * the longest a live token may spend at a machine: a batch may start
+         * right before TOKEN_HOLD_MAX and take a connect and the whole
+         * SERVER_TIMEOUT twice (CalculatorSession retries it once), and
+         * passing it on may cost three TOKEN_CONNECT_TIMEOUTs (SuccessorLink
+         * retries the original successor, then tries the current one twice).
+         * The watchdog must not regenerate the token before it could be back
+         */
+        long batch = 2L * (SERVER_CONNECT_TIMEOUT + SERVER_TIMEOUT);
+        long hop = Math.max(HOLD_POLICY.minHold, HOLD_POLICY.maxHold + batch) + 3L * TOKEN_CONNECT_TIMEOUT;
+        long lap = MACHINES * hop;
+        TOKEN_TIMEOUT = Long.parseLong(prop.getProperty("TOKEN_TIMEOUT", String.valueOf(2 * lap)));
+        if (TOKEN_TIMEOUT <= lap)
+            throw new IOException("TOKEN_TIMEOUT of " + TOKEN_TIMEOUT + " ms isn't above the " + lap
+                    + " ms a token may take to go around the ring");
+        TOKEN_RETRY_INTERVAL = Long.parseLong(prop.getProperty("TOKEN_RETRY_INTERVAL", "1000"));
+    }
+
+    /**
+     * Queues an operation for the next time one of the tokens gets here
+     *
+     * @param op One of the OperationQueue opcodes
+     * @return A future completed with the result once the server answers it
+     *         (on the thread that handles the token, so long-running stages
+     *         should be chained with the *Async methods)
+     */
+    public static CompletableFuture<Double> Submit(byte op, double x, double y) {
+        CompletableFuture<Double> result = new CompletableFuture<>();
+        if (!serverOperations.offer(op, x, y, result))
+            result.completeExceptionally(new RejectedExecutionException("operation queue is full"));
+        return result;
     }
 
     public static void main(String[] args) throws Exception {
@@ -118,8 +192,28 @@ public class Peer {
         TARGET_HOST = MACHINE_TO_IP.get(args[1]).getKey();
         TARGET_PORT = MACHINE_TO_IP.get(args[1]).getValue();
 
+        /*
+         * if the successor is down, the token skips to the machines after it
+         */
+        int machines = MACHINE_TO_IP.size();
+        int self = Integer.parseInt(args[0].substring(1));
+        int next = Integer.parseInt(args[1].substring(1));
+        ArrayList<Pair<String, Integer>> candidates = new ArrayList<>();
+        for (int i = 0; i < machines; i++) {
+            int machine = (next - 1 + i) % machines + 1;
+            if (machine != self)
+                candidates.add(MACHINE_TO_IP.get("m" + machine));
+        }
+        successor = new SuccessorLink(candidates, TOKEN_CONNECT_TIMEOUT, TOKEN_RETRY_INTERVAL, peer.logger);
+
+        LATENCY = new LatencyTracer(peer.logger, LATENCY_REPORT_INTERVAL);
+        Metrics.Gauge("ring.operation_queue", () -> serverOperations.size());
+        Metrics.Expose("ring-" + args[0], METRICS_PORT == 0 ? 0 : METRICS_PORT + port % 10);
+
         new Thread(new Server(host, port, peer.logger)).start();
+        new Thread(LATENCY).start();
         new Thread(new Client(peer.logger, OPERATION_LAMBDA)).start();
+        new Thread(new TokenWatchdog(peer.logger, TOKEN_TIMEOUT, TOKEN_TIMEOUT_STAGGER, self)).start();
     }
 }
 
@@ -146,6 +240,7 @@ class Server implements Runnable {
             while (true) {
                 try {
                     Socket client = server.accept();
+                    Peer.CONNECTIONS.increment();
                     String clientAddress = client.getInetAddress().getHostAddress();
 
                     new Thread(new Connection(clientAddress, client, logger)).start();
@@ -157,103 +252,6 @@ class Server implements Runnable {
             e.printStackTrace();
         }
     }
-
-    /**
-     * Function that sends an operation to the server, and receives it's result
-     *
-     * @param operation Operation to be sent to the server
-     */
-    public static void SendReceiveMessage(String operation) {
-        try {
-            /*
-             * prepare socket I/O channels
-             */
-            Socket serverSocket = new Socket(InetAddress.getByName(Peer.SERVER_HOST), Peer.SERVER_PORT);
-            PrintWriter out = new PrintWriter(serverSocket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(serverSocket.getInputStream()));
-            /*
-             * send command
-             */
-            System.out.printf(operation);
-            out.println(operation);
-            out.flush();
-            /*
-             * receive result
-             */
-            String result = in.readLine();
-            System.out.printf("= %.3f\n", Double.parseDouble(result));
-            /*
-             * close connection
-             */
-            out.close();
-            in.close();
-            serverSocket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-}
-
-/**
- * Represents a connection with another peer. This class is called whenever
- * another peer connects to us via the Server class
- */
-class Connection implements Runnable {
-    String clientAddress;
-    Socket clientSocket;
-    Logger logger;
-
-    public Connection(String clientAddress, Socket clientSocket, Logger logger) {
-        this.clientAddress = clientAddress;
-        this.clientSocket = clientSocket;
-        this.logger = logger;
-    }
-
-    @Override
-    public void run() {
-        /*
-         * prepare socket I/O channels
-         */
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-            String command;
-            command = in.readLine();
-
-            /*
-             * We got a message from the peer, so we have the token now
-             */
-            if (command != null) {
-                System.out.println("Got token, sending " + Peer.serverOperations.size() + " things to server");
-
-                while (!Peer.serverOperations.isEmpty()) {
-                    String op = Peer.serverOperations.poll();
-                    Server.SendReceiveMessage(op);
-                }
-                Thread.sleep(1 * 1000); // Useless, we're just doing this so it's easier to see the token passing trough
-                // the peers
-
-                Socket peerSocket = new Socket(InetAddress.getByName(Peer.TARGET_HOST), Peer.TARGET_PORT);
-                System.out.println("Sending token");
-                PrintWriter peerOut = new PrintWriter(peerSocket.getOutputStream(), true);
-                peerOut.println("");
-                peerOut.flush();
-                peerOut.close();
-
-                /*
-                 * close connection
-                 */
-                peerSocket.close();
-            }
-
-            /*
-             * close connection
-             */
-            clientSocket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
 }
 
 /**
@@ -308,35 +306,23 @@ class PoissonSimulation implements Runnable {
         return shifted;
     }
 
-    public String randomOperation() {
-        int op = new Random().nextInt(4);
-        String ans = "";
-        switch (op) {
-            case 0:
-                ans = "add";
-                break;
-            case 1:
-                ans = "sub";
-                break;
-            case 2:
-                ans = "mul";
-                break;
-            case 3:
-                ans = "div";
-                break;
-        }
+    public byte randomOperation() {
+        return (byte) new Random().nextInt(4);
+    }
 
-        return ans;
+    /**
+     * Keeps the first four characters worth of precision of an operand in
+     * [0, 100), as the operations used to be formatted with %.4s
+     */
+    public static double truncate(double value) {
+        double scale = value >= 10 ? 10 : 100;
+        return Math.floor(value * scale) / scale;
     }
 
     @Override
     public void run() {
         while (true) {
-            String op = randomOperation();
-            String a = String.valueOf(randomInRange());
-            String b = String.valueOf(randomInRange());
-
-            Peer.serverOperations.add(String.format("%s:%.4s:%.4s", op, a, b));
+            Peer.serverOperations.offer(randomOperation(), truncate(randomInRange()), truncate(randomInRange()));
 
             double t_sleep = pp.timeForNextEvent() * 60 * 1000;
             try {
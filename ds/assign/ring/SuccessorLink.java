@@ -0,0 +1,128 @@
+package ds.assign.ring;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.logging.Logger;
+
+import ds.common.Metrics;
+
+/**
+ * Long-lived connection to the next peer in the ring, used to pass the token
+ * without opening a new socket on every rotation.
+ *
+ * If the successor can't be reached, the token goes to the next live machine
+ * of MACHINE_TO_IP instead, and the original successor is tried again every
+ * TOKEN_RETRY_INTERVAL ms
+ */
+class SuccessorLink {
+    List<Pair<String, Integer>> candidates; // the successor first, then the machines after it
+    int connectTimeout; // ms
+    long retryInterval; // ms
+    Logger logger;
+
+    int current = 0;
+    long lastRetry = 0;
+    Socket socket;
+    PrintWriter out;
+
+    public SuccessorLink(List<Pair<String, Integer>> candidates, int connectTimeout, long retryInterval,
+            Logger logger) {
+        this.candidates = candidates;
+        this.connectTimeout = connectTimeout;
+        this.retryInterval = retryInterval;
+        this.logger = logger;
+    }
+
+    /**
+     * Writes the token frame to the first reachable candidate, starting with the
+     * one currently in use. A broken link is reopened once before moving on
+     *
+     * @param token Token to be passed on
+     * @throws IOException Whenever none of the candidates can be reached
+     */
+    public synchronized void PassToken(Token token) throws IOException {
+        if (current != 0 && System.currentTimeMillis() - lastRetry > retryInterval) {
+            lastRetry = System.currentTimeMillis();
+            close();
+            if (trySend(0, token)) {
+                logger.info("successor " + describe(0) + " is back");
+                current = 0;
+                return;
+            }
+        }
+
+        for (int i = 0; i < candidates.size(); i++) {
+            int candidate = (current + i) % candidates.size();
+            if (!trySend(candidate, token) && !(i == 0 && trySend(candidate, token)))
+                continue;
+
+            if (candidate != current) {
+                logger.warning("successor " + describe(current) + " unreachable, passing the token to "
+                        + describe(candidate));
+                current = candidate;
+                lastRetry = System.currentTimeMillis();
+            }
+            return;
+        }
+        throw new IOException("no reachable successor for token " + token.id);
+    }
+
+    /**
+     * @return Whether the frame was written, the link is closed otherwise
+     */
+    private boolean trySend(int candidate, Token token) {
+        try {
+            send(candidate, token);
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    private void send(int candidate, Token token) throws IOException {
+        if (socket == null) {
+            Pair<String, Integer> target = candidates.get(candidate);
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(InetAddress.getByName(target.getKey()), target.getValue()),
+                        connectTimeout);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+            s.setTcpNoDelay(true);
+            socket = s;
+            out = new PrintWriter(Metrics.Counted(socket.getOutputStream(), Peer.BYTES_OUT), false);
+        }
+
+        out.println(token.toFrame());
+        out.flush();
+        if (out.checkError()) {
+            close();
+            throw new IOException("link to " + describe(candidate) + " is broken");
+        }
+    }
+
+    private String describe(int candidate) {
+        Pair<String, Integer> target = candidates.get(candidate);
+        return target.getKey() + ":" + target.getValue();
+    }
+
+    public synchronized void close() {
+        if (socket == null)
+            return;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        socket = null;
+        out = null;
+    }
+}
@@ -0,0 +1,66 @@
+package ds.assign.ring;
+
+/**
+ * Token frame passed between peers over the successor link. On the wire it's a
+ * single line of the form TOKEN:[id]:[epoch]:[seq], where id tells which of the
+ * ring's tokens (and so which calculator server) it is, epoch which incarnation
+ * of that token it is, and seq how many times this incarnation was passed on.
+ * An empty line is read as the first pass of token 0.
+ *
+ * A peer that regenerates a lost token uses a new epoch made of the next
+ * generation number and its own rank, so tokens regenerated by different peers
+ * never share an epoch
+ */
+class Token {
+    public static final String PREFIX = "TOKEN";
+    public static final int RANK_BITS = 8;
+
+    int id;
+    long epoch;
+    long seq;
+
+    public Token(int id, long epoch, long seq) {
+        this.id = id;
+        this.epoch = epoch;
+        this.seq = seq;
+    }
+
+    /**
+     * @param line Line received from the predecessor
+     * @return The token carried by the line, or null if it isn't a token frame
+     */
+    public static Token Parse(String line) {
+        if (line.isEmpty())
+            return new Token(0, 0, 0);
+
+        String[] fields = line.split(":");
+        if (fields.length != 4 || !fields[0].equals(PREFIX))
+            return null;
+
+        try {
+            return new Token(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param highestEpoch Highest epoch seen so far for this token
+     * @param rank         Rank of the peer regenerating the token
+     * @return The first epoch of the next generation, owned by the given rank
+     */
+    public static long NextEpoch(long highestEpoch, int rank) {
+        return (((highestEpoch >> RANK_BITS) + 1) << RANK_BITS) | (rank & ((1 << RANK_BITS) - 1));
+    }
+
+    /**
+     * @return The token that should be passed on to the successor
+     */
+    public Token next() {
+        return new Token(id, epoch, seq + 1);
+    }
+
+    public String toFrame() {
+        return PREFIX + ":" + id + ":" + epoch + ":" + seq;
+    }
+}
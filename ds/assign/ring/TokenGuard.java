@@ -0,0 +1,61 @@
+package ds.assign.ring;
+
+/**
+ * Tracks one of the ring's tokens at this peer, to detect when it was lost and
+ * to discard stale copies of it. A token is only accepted if its epoch is the
+ * highest seen so far, or the same epoch with a higher sequence number
+ */
+class TokenGuard {
+    int id;
+
+    long highestEpoch = -1;
+    long lastSeq = -1;
+    long lastSeen; // nanoTime the token was last received or passed on
+    boolean holding = false;
+    boolean armed = false; // only watch a token once it was seen at least once
+
+    public TokenGuard(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return Whether the token is current and should be handled
+     */
+    public synchronized boolean accept(Token token) {
+        if (token.epoch < highestEpoch || (token.epoch == highestEpoch && token.seq <= lastSeq))
+            return false;
+
+        highestEpoch = token.epoch;
+        lastSeq = token.seq;
+        lastSeen = System.nanoTime();
+        holding = true;
+        armed = true;
+        return true;
+    }
+
+    /**
+     * Called once the token has been passed on (or its pass failed)
+     */
+    public synchronized void released(Token passed) {
+        lastSeq = Math.max(lastSeq, passed.seq);
+        lastSeen = System.nanoTime();
+        holding = false;
+    }
+
+    /**
+     * @param timeout Time (ns) without seeing the token after which it's lost
+     * @param rank    Rank of this peer, used for the new epoch
+     * @return A regenerated token if the current one was lost, or null
+     */
+    public synchronized Token regenerateIfLost(long timeout, int rank) {
+        if (!armed || holding || System.nanoTime() - lastSeen < timeout)
+            return null;
+
+        Token token = new Token(id, Token.NextEpoch(highestEpoch, rank), 0);
+        highestEpoch = token.epoch;
+        lastSeq = token.seq;
+        lastSeen = System.nanoTime();
+        holding = true;
+        return token;
+    }
+}
@@ -0,0 +1,52 @@
+package ds.assign.ring;
+
+import java.util.Properties;
+
+/**
+ * Decides how long a peer keeps the token. Read from conf_ring.prop:
+ * TOKEN_HOLD_MIN is the minimum time (ms) the token stays at a peer that had
+ * work to do, TOKEN_HOLD_MAX bounds how long a peer keeps draining new
+ * operations, and TOKEN_PASS_WHEN_IDLE passes the token on right away when
+ * there was nothing to send
+ */
+class TokenHoldPolicy {
+    long minHold; // ms
+    long maxHold; // ms
+    boolean passWhenIdle;
+
+    public TokenHoldPolicy(long minHold, long maxHold, boolean passWhenIdle) {
+        this.minHold = minHold;
+        this.maxHold = maxHold;
+        this.passWhenIdle = passWhenIdle;
+    }
+
+    public static TokenHoldPolicy FromProperties(Properties prop) {
+        return new TokenHoldPolicy(
+                Long.parseLong(prop.getProperty("TOKEN_HOLD_MIN", "0")),
+                Long.parseLong(prop.getProperty("TOKEN_HOLD_MAX", "1000")),
+                Boolean.parseBoolean(prop.getProperty("TOKEN_PASS_WHEN_IDLE", "true")));
+    }
+
+    /**
+     * @param acquired nanoTime at which the token was received
+     * @return Whether the holder may still send another batch
+     */
+    public boolean canDrain(long acquired) {
+        return System.nanoTime() - acquired < maxHold * 1_000_000;
+    }
+
+    /**
+     * Sleeps for whatever is left of the minimum hold time
+     *
+     * @param acquired   nanoTime at which the token was received
+     * @param operations Number of operations sent during this visit
+     */
+    public void holdUntilDue(long acquired, int operations) throws InterruptedException {
+        if (operations == 0 && passWhenIdle)
+            return;
+
+        long remaining = minHold - (System.nanoTime() - acquired) / 1_000_000;
+        if (remaining > 0)
+            Thread.sleep(remaining);
+    }
+}
@@ -0,0 +1,99 @@
+package ds.assign.ring;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Deficit round robin share of one of the ring's tokens. Every visit credits the peer with
+ * TOKEN_OP_QUANTUM operations; whatever it couldn't use because TOKEN_HOLD_MAX
+ * ran out is carried over to the next rotation, up to TOKEN_DEFICIT_MAX. When
+ * the queue is emptied the credit is dropped, so an idle peer can't save up a
+ * burst. A quantum of 0 disables the budget.
+ *
+ * It also keeps this peer's statistics for the token, logged every
+ * TOKEN_STATS_INTERVAL ms
+ */
+class TokenScheduler {
+    int quantum;
+    int maxDeficit;
+    long statsInterval; // ms
+
+    int deficit = 0;
+
+    /*
+     * statistics since the last report
+     */
+    long visits = 0;
+    long busyVisits = 0;
+    long cutShortVisits = 0;
+    long operations = 0;
+    long maxVisitOperations = 0;
+    long holdTime = 0; // ns
+    long maxHoldTime = 0; // ns
+    long lastReport = System.nanoTime();
+
+    public TokenScheduler(int quantum, int maxDeficit, long statsInterval) {
+        this.quantum = quantum;
+        this.maxDeficit = maxDeficit;
+        this.statsInterval = statsInterval;
+    }
+
+    public static TokenScheduler FromProperties(Properties prop) {
+        int quantum = Integer.parseInt(prop.getProperty("TOKEN_OP_QUANTUM", "0"));
+        return new TokenScheduler(
+                quantum,
+                Integer.parseInt(prop.getProperty("TOKEN_DEFICIT_MAX", String.valueOf(4 * quantum))),
+                Long.parseLong(prop.getProperty("TOKEN_STATS_INTERVAL", "10000")));
+    }
+
+    /**
+     * @return How many operations this peer may send during the visit that is
+     *         starting
+     */
+    public synchronized int startVisit() {
+        if (quantum <= 0)
+            return Integer.MAX_VALUE;
+
+        deficit = Math.min(deficit + quantum, Math.max(maxDeficit, quantum));
+        return deficit;
+    }
+
+    /**
+     * @param sent       Operations sent during the visit
+     * @param queueEmpty Whether there was nothing left to send when the token left
+     * @param held       Time the token was held, in ns
+     */
+    public synchronized void endVisit(int sent, boolean queueEmpty, long held) {
+        if (quantum > 0)
+            deficit = queueEmpty ? 0 : deficit - sent;
+
+        visits++;
+        if (sent > 0)
+            busyVisits++;
+        if (!queueEmpty)
+            cutShortVisits++;
+        operations += sent;
+        maxVisitOperations = Math.max(maxVisitOperations, sent);
+        holdTime += held;
+        maxHoldTime = Math.max(maxHoldTime, held);
+    }
+
+    /**
+     * Logs and resets the statistics if the report interval has elapsed
+     */
+    public synchronized void report(Logger logger, int token) {
+        long now = System.nanoTime();
+        if (now - lastReport < statsInterval * 1_000_000)
+            return;
+
+        logger.info(String.format(
+                "token %d stats: %d visits (%d with work, %d cut short), %d operations (max %d per visit), "
+                        + "hold avg %.3f ms max %.3f ms, carried deficit %d",
+                token, visits, busyVisits, cutShortVisits, operations, maxVisitOperations,
+                visits == 0 ? 0.0 : holdTime / 1e6 / visits, maxHoldTime / 1e6, deficit));
+
+        visits = busyVisits = cutShortVisits = operations = maxVisitOperations = 0;
+        holdTime = maxHoldTime = 0;
+        lastReport = now;
+    }
+}
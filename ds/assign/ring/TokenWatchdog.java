@@ -0,0 +1,48 @@
+package ds.assign.ring;
+
+import java.util.logging.Logger;
+
+/**
+ * Regenerates tokens that didn't come back within TOKEN_TIMEOUT ms. Peers
+ * wait an extra TOKEN_TIMEOUT_STAGGER ms per rank, so that usually a single
+ * peer regenerates a lost token; if several do, the copy with the highest
+ * epoch wins and the others are dropped by the first peer that saw it
+ */
+class TokenWatchdog implements Runnable {
+    Logger logger;
+    long timeout; // ns
+    int rank;
+
+    public TokenWatchdog(Logger logger, long timeout, long stagger, int rank) {
+        this.logger = logger;
+        this.timeout = (timeout + stagger * rank) * 1_000_000;
+        this.rank = rank;
+    }
+
+    @Override
+    public void run() {
+        long period = Math.max(1, timeout / 10 / 1_000_000);
+        while (true) {
+            for (TokenGuard guard : Peer.GUARDS) {
+                Token token = guard.regenerateIfLost(timeout, rank);
+                if (token == null)
+                    continue;
+
+                logger.warning("token " + token.id + " lost, regenerating it with epoch " + token.epoch);
+                Peer.TOKEN_WORKERS[token.id].execute(() -> {
+                    try {
+                        Connection.HandleToken(token, logger);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+
+            try {
+                Thread.sleep(period);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
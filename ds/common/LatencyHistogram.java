@@ -0,0 +1,134 @@
+package ds.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of durations in ns, in the style of HdrHistogram: every
+ * power of two is split in 16 buckets, so any value is kept within ~6% of its
+ * real size. Recording only bumps atomic counters, so it never allocates nor
+ * locks, and can be done from several threads at once.
+ *
+ * count, sum, max and percentile cover everything recorded since the histogram
+ * was created (see Metrics.Histogram); report summarizes what was recorded
+ * since the previous report
+ */
+public class LatencyHistogram {
+  static final int SUB_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+  private final AtomicLong intervalMax = new AtomicLong(); // since the last report
+  private final long[] reported = new long[counts.length()]; // counts at the last report
+
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    counts.incrementAndGet(Bucket(value));
+    count.increment();
+    sum.add(value);
+    Raise(max, value);
+    Raise(intervalMax, value);
+  }
+
+  /**
+   * Records the time since start, a System.nanoTime() value
+   */
+  public void recordSince(long start) {
+    record(System.nanoTime() - start);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long sum() {
+    return sum.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * @return The upper bound of the bucket holding the given fraction of the
+   *         values, at most the largest value seen
+   */
+  public long percentile(double fraction) {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    return Percentile(snapshot, total, fraction, max.get());
+  }
+
+  /**
+   * Summarizes the values recorded since the last report
+   *
+   * @param name Name of the measured stage
+   */
+  public synchronized String report(String name) {
+    long[] snapshot = new long[counts.length()];
+    long total = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      long current = counts.get(i);
+      snapshot[i] = current - reported[i];
+      reported[i] = current;
+      total += snapshot[i];
+    }
+    long highest = intervalMax.getAndSet(0);
+    if (total == 0)
+      return String.format("%s: no operations", name);
+
+    return String.format("%s: n=%d p50=%.3f ms p90=%.3f ms p99=%.3f ms p99.9=%.3f ms max=%.3f ms",
+        name, total,
+        Percentile(snapshot, total, 0.50, highest) / 1e6, Percentile(snapshot, total, 0.90, highest) / 1e6,
+        Percentile(snapshot, total, 0.99, highest) / 1e6, Percentile(snapshot, total, 0.999, highest) / 1e6,
+        highest / 1e6);
+  }
+
+  /*
+   * bucket bounds are capped by the largest value actually seen
+   */
+  private static long Percentile(long[] snapshot, long total, double fraction, long highest) {
+    long rank = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length && total > 0; i++) {
+      seen += snapshot[i];
+      if (seen >= rank)
+        return Math.min(UpperBound(i), highest);
+    }
+    return highest;
+  }
+
+  private static void Raise(AtomicLong highest, long value) {
+    long current;
+    while (value > (current = highest.get()) && !highest.compareAndSet(current, value)) {
+    }
+  }
+
+  static int Bucket(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) | sub;
+  }
+
+  /**
+   * @return The largest value that falls in the given bucket
+   */
+  static long UpperBound(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+    long sub = bucket & (SUB_BUCKETS - 1);
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+}
@@ -0,0 +1,234 @@
+package ds.common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only list of the lines of a words file (one word per line, UTF-8),
+ * memory-mapped instead of read into Strings. Only the offset of every line is
+ * kept, so a word is decoded when it's asked for; peers running on the same
+ * machine share the mapped file through the page cache.
+ *
+ * The offsets are saved next to the file ("<file>.idx") the first time, and
+ * mapped as well by the next peers, as long as the words file didn't change.
+ * Words are found back by binary search when the file is sorted (by bytes),
+ * otherwise through a map built the first time one is looked up
+ */
+public class Lexicon {
+  private static final int INDEX_MAGIC = 0x4c584958; // "LXIX"
+  private static final int INDEX_VERSION = 2;
+  private static final int INDEX_HEADER = 4 + 4 + 8 + 8 + 4 + 4;
+
+  private final MappedByteBuffer words;
+  private final IntBuffer offsets; // start of every line, plus the end of the file
+  private final int size;
+  private boolean sorted;
+  private Map<String, Integer> positions; // only for unsorted files
+
+  private Lexicon(MappedByteBuffer words, IntBuffer offsets, boolean sorted) {
+    this.words = words;
+    this.offsets = offsets;
+    this.size = offsets.limit() - 1;
+    this.sorted = sorted;
+  }
+
+  /**
+   * @param file Words file
+   * @throws IOException Whenever the file can't be read
+   */
+  public static Lexicon Open(String file) throws IOException {
+    Path path = Paths.get(file);
+    long length = Files.size(path);
+    if (length > Integer.MAX_VALUE)
+      throw new IOException(file + " is too large to be mapped");
+
+    MappedByteBuffer words;
+    try (FileChannel channel = FileChannel.open(path)) {
+      words = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+
+    long modified = Files.getLastModifiedTime(path).toMillis();
+    Path indexPath = Paths.get(file + ".idx");
+    Lexicon lexicon = LoadIndex(words, indexPath, length, modified);
+    if (lexicon == null) {
+      lexicon = new Lexicon(words, BuildIndex(words), false);
+      lexicon.sorted = lexicon.checkSorted();
+      SaveIndex(indexPath, lexicon, length, modified);
+    }
+    return lexicon;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The i-th word, trimmed
+   */
+  public String get(int i) {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("word " + i + " of " + size);
+
+    int start = start(i);
+    byte[] bytes = new byte[end(i) - start];
+    words.duplicate().position(start).get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The position of the (first) line holding the word, or -1 if it isn't
+   *         in the file
+   */
+  public int indexOf(String word) {
+    if (!sorted)
+      return positions().getOrDefault(word, -1);
+
+    byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+    int low = 0, high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int cmp = compare(middle, bytes);
+      if (cmp < 0)
+        low = middle + 1;
+      else if (cmp > 0)
+        high = middle - 1;
+      else {
+        while (middle > 0 && compare(middle - 1, bytes) == 0)
+          middle--;
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private synchronized Map<String, Integer> positions() {
+    if (positions == null) {
+      positions = new HashMap<>();
+      for (int i = 0; i < size; i++)
+        positions.putIfAbsent(get(i), i);
+    }
+    return positions;
+  }
+
+  /*
+   * bounds of the i-th word, without surrounding whitespace
+   */
+  private int start(int i) {
+    int start = offsets.get(i);
+    int end = offsets.get(i + 1);
+    while (start < end && (words.get(start) & 0xff) <= ' ')
+      start++;
+    return start;
+  }
+
+  private int end(int i) {
+    int start = offsets.get(i);
+    int end = offsets.get(i + 1);
+    while (end > start && (words.get(end - 1) & 0xff) <= ' ')
+      end--;
+    return end;
+  }
+
+  /**
+   * Compares the i-th word with the given bytes, as unsigned bytes
+   */
+  private int compare(int i, byte[] bytes) {
+    int start = start(i);
+    int length = end(i) - start;
+    for (int j = 0; j < Math.min(length, bytes.length); j++) {
+      int cmp = Integer.compare(words.get(start + j) & 0xff, bytes[j] & 0xff);
+      if (cmp != 0)
+        return cmp;
+    }
+    return Integer.compare(length, bytes.length);
+  }
+
+  private boolean checkSorted() {
+    for (int i = 1; i < size; i++) {
+      int start = start(i);
+      byte[] bytes = new byte[end(i) - start];
+      words.duplicate().position(start).get(bytes);
+      if (compare(i - 1, bytes) > 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static IntBuffer BuildIndex(ByteBuffer words) {
+    int lines = 0;
+    int limit = words.limit();
+    for (int i = 0; i < limit; i++) {
+      if (words.get(i) == '\n')
+        lines++;
+    }
+    boolean unterminated = limit > 0 && words.get(limit - 1) != '\n';
+    if (unterminated)
+      lines++;
+
+    int[] offsets = new int[lines + 1];
+    int line = 1;
+    for (int i = 0; i < limit; i++) {
+      if (words.get(i) == '\n' && line < offsets.length)
+        offsets[line++] = i + 1;
+    }
+    offsets[lines] = limit;
+    return IntBuffer.wrap(offsets);
+  }
+
+  /**
+   * @return The lexicon with the saved offsets, or null if there are none for
+   *         this version of the words file
+   */
+  private static Lexicon LoadIndex(MappedByteBuffer words, Path indexPath, long length, long modified) {
+    if (!Files.isRegularFile(indexPath))
+      return null;
+
+    try (FileChannel channel = FileChannel.open(indexPath)) {
+      if (channel.size() < INDEX_HEADER)
+        return null;
+      MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION || index.getLong() != length
+          || index.getLong() != modified)
+        return null;
+      boolean sorted = index.getInt() != 0;
+      int count = index.getInt();
+      if (count < 1 || index.remaining() != (long) count * 4)
+        return null;
+      return new Lexicon(words, index.slice().asIntBuffer(), sorted);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /*
+   * written to a temporary file first, so other peers never map half an index
+   */
+  private static void SaveIndex(Path indexPath, Lexicon lexicon, long length, long modified) {
+    IntBuffer offsets = lexicon.offsets;
+    try {
+      Path temp = Files.createTempFile(indexPath.toAbsolutePath().getParent(), "lexicon", ".tmp");
+      try (RandomAccessFile out = new RandomAccessFile(temp.toFile(), "rw")) {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER + offsets.limit() * 4);
+        buffer.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putLong(length).putLong(modified);
+        buffer.putInt(lexicon.sorted ? 1 : 0).putInt(offsets.limit());
+        buffer.asIntBuffer().put(offsets.duplicate());
+        out.write(buffer.array());
+      }
+      Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      /* the index is only a cache, it's rebuilt next time */
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package ds.common;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters, gauges and histograms of a peer, cheap enough for the hot paths:
+ * counters are LongAdders (striped across threads) and histograms only bump
+ * atomic counters, so recording never locks nor allocates. Metrics are
+ * registered once by name, and can be read while the peer runs through JMX
+ * (the ds.assign:type=Metrics MBean) or, once Expose was given a port, as
+ * "name value" lines from http://localhost:<port>/metrics
+ */
+public class Metrics {
+  private static final Map<String, Object> METRICS = new ConcurrentSkipListMap<>();
+
+  /**
+   * @return The counter with this name, created the first time
+   */
+  public static Counter Counter(String name) {
+    return (Counter) METRICS.computeIfAbsent(name, n -> new Counter());
+  }
+
+  /**
+   * @return The histogram with this name, created the first time
+   */
+  public static LatencyHistogram Histogram(String name) {
+    return (LatencyHistogram) METRICS.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  /**
+   * Registers a value that is read whenever the metrics are
+   */
+  public static void Gauge(String name, LongSupplier value) {
+    METRICS.put(name, value);
+  }
+
+  /**
+   * @return The current value of every metric; histograms are flattened into
+   *         name.count, name.sum, name.p50, name.p90, name.p99 and name.max
+   */
+  public static Map<String, Long> Snapshot() {
+    Map<String, Long> values = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> metric : METRICS.entrySet()) {
+      String name = metric.getKey();
+      Object value = metric.getValue();
+      if (value instanceof Counter) {
+        values.put(name, ((Counter) value).sum());
+      } else if (value instanceof LatencyHistogram) {
+        LatencyHistogram histogram = (LatencyHistogram) value;
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".sum", histogram.sum());
+        values.put(name + ".p50", histogram.percentile(0.50));
+        values.put(name + ".p90", histogram.percentile(0.90));
+        values.put(name + ".p99", histogram.percentile(0.99));
+        values.put(name + ".max", histogram.max());
+      } else {
+        values.put(name, ((LongSupplier) value).getAsLong());
+      }
+    }
+    return values;
+  }
+
+  public static String Render() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Long> value : Snapshot().entrySet())
+      text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+    return text.toString();
+  }
+
+  /**
+   * Registers the metrics as an MBean and, if port isn't 0, serves them on
+   * localhost:port/metrics
+   *
+   * @param name Name of this peer, for the MBean
+   */
+  public static void Expose(String name, int port) throws IOException {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+          new ObjectName("ds.assign:type=Metrics,name=" + name));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    if (port == 0)
+      return;
+
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", exchange -> {
+      byte[] body = Render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * @return The stream, adding every byte read from it to the counter
+   */
+  public static InputStream Counted(InputStream in, Counter bytes) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+          bytes.add(1);
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+          bytes.add(n);
+        return n;
+      }
+    };
+  }
+
+  /**
+   * @return The stream, adding every byte written to it to the counter
+   */
+  public static OutputStream Counted(OutputStream out, Counter bytes) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytes.add(1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes.add(len);
+      }
+    };
+  }
+
+  public static class Counter {
+    private final LongAdder adder = new LongAdder();
+
+    public void increment() {
+      adder.increment();
+    }
+
+    public void add(long n) {
+      adder.add(n);
+    }
+
+    public long sum() {
+      return adder.sum();
+    }
+  }
+
+  /**
+   * Read-only MBean with an attribute per value of Snapshot
+   */
+  static class Bean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Long value = Snapshot().get(attribute);
+      if (value == null)
+        throw new AttributeNotFoundException(attribute);
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> values = Snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        if (values.containsKey(attribute))
+          list.add(new Attribute(attribute, values.get(attribute)));
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+      throw new UnsupportedOperationException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(action);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Long> values = Snapshot();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+      int i = 0;
+      for (String name : values.keySet())
+        attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+      return new MBeanInfo(Metrics.class.getName(), "Metrics of this peer", attributes, null,
+          new MBeanOperationInfo[0], null);
+    }
+  }
+}
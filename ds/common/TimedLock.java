@@ -0,0 +1,28 @@
+package ds.common;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReentrantLock that records how long every lock() waited for it, in ns (0 when
+ * it was free), into a Metrics histogram
+ */
+public class TimedLock extends ReentrantLock {
+  private static final long serialVersionUID = 1L;
+
+  private final transient LatencyHistogram waits;
+
+  public TimedLock(LatencyHistogram waits) {
+    this.waits = waits;
+  }
+
+  @Override
+  public void lock() {
+    if (tryLock()) {
+      waits.record(0);
+      return;
+    }
+    long start = System.nanoTime();
+    super.lock();
+    waits.recordSince(start);
+  }
+}
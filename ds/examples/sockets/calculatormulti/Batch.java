@@ -0,0 +1,79 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.util.Arrays;
+
+/**
+ * Column-wise storage for a batch request. The operations of a batch are kept
+ * in primitive columns (opcodes, first operands, second operands, results)
+ * which are reused across the batches of a connection.
+ *
+ * As text, a batch is the single line batch:N:op:x:y:...:op:x:y and is
+ * answered with the single line r1:r2:...:rN. As a binary frame, it's the
+ * OP_BATCH opcode, the int N, the N opcodes, the N first operands and the N
+ * second operands, and it's answered with N doubles
+ */
+class Batch {
+	public static final int MAX_SIZE = 1 << 16;
+	public static final String TEXT_PREFIX = "batch";
+
+	byte[] ops = new byte[64];
+	double[] x = new double[64];
+	double[] y = new double[64];
+	double[] results = new double[64];
+	int size;
+
+	/**
+	 * Makes room for n operations, discarding the previous batch
+	 */
+	public void reset(int n) {
+		if (n < 0 || n > MAX_SIZE)
+			throw new IllegalArgumentException("batch size out of range: " + n);
+
+		if (n > ops.length) {
+			int capacity = Math.max(n, ops.length * 2);
+			ops = new byte[capacity];
+			x = new double[capacity];
+			y = new double[capacity];
+			results = new double[capacity];
+		}
+		size = n;
+	}
+
+	/**
+	 * Evaluates the whole batch into the results column. Consecutive operations
+	 * with the same opcode are evaluated by one tight loop over the operand
+	 * columns, which the JIT can unroll and vectorize
+	 */
+	public void evaluate() {
+		int start = 0;
+		while (start < size) {
+			byte op = ops[start];
+			int end = start + 1;
+			while (end < size && ops[end] == op)
+				end++;
+
+			switch (op) {
+				case Calculator.OP_ADD:
+					for (int i = start; i < end; i++)
+						results[i] = x[i] + y[i];
+					break;
+				case Calculator.OP_SUB:
+					for (int i = start; i < end; i++)
+						results[i] = x[i] - y[i];
+					break;
+				case Calculator.OP_MUL:
+					for (int i = start; i < end; i++)
+						results[i] = x[i] * y[i];
+					break;
+				case Calculator.OP_DIV:
+					for (int i = start; i < end; i++)
+						results[i] = x[i] / y[i];
+					break;
+				default:
+					Arrays.fill(results, start, end, 0.0);
+					break;
+			}
+			start = end;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package ds.examples.sockets.calculatormulti;
+
+/**
+ * Evaluation of the calculator requests, shared by both server engines.
+ *
+ * Clients speak the op:x:y line protocol by default. A client that sends the
+ * line "binary" gets "binary" back and from then on sends fixed frames of a
+ * 1-byte opcode followed by two IEEE doubles, and receives a single double per
+ * frame. Many operations can be sent in a single batch request, see Batch
+ */
+class Calculator {
+	public static final byte OP_ADD = 0;
+	public static final byte OP_SUB = 1;
+	public static final byte OP_MUL = 2;
+	public static final byte OP_DIV = 3;
+	public static final byte OP_BATCH = 4;
+	public static final byte OP_UNKNOWN = -1;
+
+	public static final String BINARY_HANDSHAKE = "binary";
+	public static final int BINARY_FRAME = 1 + 8 + 8;
+	public static final int MAX_LINE = 1 << 22; // longest request line, in bytes
+
+	/**
+	 * @return The result of applying op to x and y (0.0 for an unknown op)
+	 */
+	public static double Evaluate(byte op, double x, double y) {
+		double result = 0.0;
+		switch (op) {
+			case OP_ADD:
+				result = x + y;
+				break;
+			case OP_SUB:
+				result = x - y;
+				break;
+			case OP_MUL:
+				result = x * y;
+				break;
+			case OP_DIV:
+				result = x / y;
+				break;
+		}
+		return result;
+	}
+}
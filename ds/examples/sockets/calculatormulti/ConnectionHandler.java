@@ -0,0 +1,134 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ConnectionHandler implements Runnable {
+	/*
+	 * text answers cache shared by every connection (of both engines), null
+	 * when disabled
+	 */
+	static ResultCache CACHE;
+
+	String clientAddress;
+	Socket clientSocket;
+	AtomicInteger connections;
+
+	private byte[] line = new byte[256];
+
+	public ConnectionHandler(String clientAddress, Socket clientSocket, AtomicInteger connections) {
+		this.clientAddress = clientAddress;
+		this.clientSocket = clientSocket;
+		this.connections = connections;
+	}
+
+	@Override
+	public void run() {
+		/*
+		 * prepare socket I/O channels
+		 */
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+			TextAnswerer answerer = new TextAnswerer(CACHE);
+			Batch batch = new Batch();
+			boolean binary = false;
+
+			while (true) {
+				if (binary) {
+					/*
+					 * receive frame, send result
+					 */
+					byte op;
+					try {
+						op = in.readByte();
+					} catch (EOFException e) {
+						break;
+					}
+					if (op == Calculator.OP_BATCH) {
+						batch.reset(in.readInt());
+						in.readFully(batch.ops, 0, batch.size);
+						for (int i = 0; i < batch.size; i++)
+							batch.x[i] = in.readDouble();
+						for (int i = 0; i < batch.size; i++)
+							batch.y[i] = in.readDouble();
+						batch.evaluate();
+						for (int i = 0; i < batch.size; i++)
+							out.writeDouble(batch.results[i]);
+					} else {
+						double x = in.readDouble();
+						double y = in.readDouble();
+						out.writeDouble(Calculator.Evaluate(op, x, y));
+					}
+				} else {
+					/*
+					 * receive command
+					 */
+					int length = readLine(in);
+					if (length < 0)
+						break;
+
+					if (RequestParser.Matches(line, 0, length, Calculator.BINARY_HANDSHAKE)) {
+						out.writeBytes(Calculator.BINARY_HANDSHAKE + "\n");
+						binary = true;
+					} else {
+						/*
+						 * send result
+						 */
+						answerer.answer(line, 0, length);
+						out.write(answerer.reply, 0, answerer.length);
+					}
+				}
+
+				/*
+				 * only flush once the client has no more pipelined requests for us
+				 */
+				if (in.available() == 0)
+					out.flush();
+			}
+			out.flush();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			connections.decrementAndGet();
+			try {
+				clientSocket.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads the next line into the reusable line buffer, without the trailing
+	 * '\n' (or "\r\n")
+	 *
+	 * @return The length of the line, or -1 at the end of the stream
+	 * @throws IOException When the line is longer than MAX_LINE, so the
+	 *                     connection is closed
+	 */
+	private int readLine(DataInputStream in) throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0)
+				return length == 0 ? -1 : length;
+			if (length == line.length) {
+				if (line.length >= Calculator.MAX_LINE)
+					throw new IOException("request line longer than " + Calculator.MAX_LINE + " bytes");
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[length++] = (byte) b;
+		}
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+		return length;
+	}
+}
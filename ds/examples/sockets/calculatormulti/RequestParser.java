@@ -0,0 +1,229 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses op:x:y requests straight from the bytes they were received in. A
+ * parser is reused for every request of a connection and only allocates when a
+ * number falls outside the fast path (more than 15 significant digits, a large
+ * exponent, NaN, Infinity...), where it defers to Double.parseDouble
+ */
+class RequestParser {
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	byte op;
+	double x;
+	double y;
+
+	private byte[] buf;
+	private int pos;
+	private int end;
+
+	/**
+	 * Parses a request line, the result is left in op, x and y
+	 *
+	 * @param buf   Buffer holding the line
+	 * @param start Index of the first byte of the line
+	 * @param end   Index just past the last byte of the line (without '\n')
+	 */
+	public void parse(byte[] buf, int start, int end) {
+		this.buf = buf;
+		this.pos = start;
+		this.end = end;
+
+		op = parseOp();
+		x = parseDouble();
+		y = parseDouble();
+		this.buf = null;
+	}
+
+	/**
+	 * Parses a batch:N:op:x:y:... line into the columns of the batch
+	 *
+	 * @param buf   Buffer holding the line
+	 * @param start Index of the first byte of the line
+	 * @param end   Index just past the last byte of the line (without '\n')
+	 * @param batch Batch to be filled
+	 */
+	public void parseBatch(byte[] buf, int start, int end, Batch batch) {
+		this.buf = buf;
+		this.pos = start + Batch.TEXT_PREFIX.length() + 1;
+		this.end = end;
+
+		batch.reset(parseInt());
+		for (int i = 0; i < batch.size; i++) {
+			batch.ops[i] = parseOp();
+			batch.x[i] = parseDouble();
+			batch.y[i] = parseDouble();
+		}
+		this.buf = null;
+	}
+
+	/**
+	 * Parses the N of a batch:N:... line
+	 *
+	 * @return The number of operations the batch declares
+	 */
+	public int parseBatchSize(byte[] buf, int start, int end) {
+		this.buf = buf;
+		this.pos = start + Batch.TEXT_PREFIX.length() + 1;
+		this.end = end;
+
+		int size = parseInt();
+		this.buf = null;
+		if (size > Batch.MAX_SIZE)
+			throw new IllegalArgumentException("batch size out of range: " + size);
+		return size;
+	}
+
+	/**
+	 * @return Whether the line is a batch request
+	 */
+	public static boolean IsBatch(byte[] buf, int start, int end) {
+		int length = Batch.TEXT_PREFIX.length();
+		return end - start > length && buf[start + length] == ':'
+				&& Matches(buf, start, start + length, Batch.TEXT_PREFIX);
+	}
+
+	/**
+	 * @return Index of the first operation of the batch line between start and end
+	 */
+	public static int SkipBatchHeader(byte[] buf, int start, int end) {
+		int colons = 0;
+		int i = start;
+		while (i < end && colons < 2) {
+			if (buf[i++] == ':')
+				colons++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return Index just past the op:x:y operation starting at start (the ':'
+	 *         before the next one, or end)
+	 */
+	public static int OperationEnd(byte[] buf, int start, int end) {
+		int colons = 0;
+		int i = start;
+		while (i < end && !(buf[i] == ':' && ++colons == 3))
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return Whether the bytes between start and end spell the given ASCII word
+	 */
+	public static boolean Matches(byte[] buf, int start, int end, String word) {
+		if (end - start != word.length())
+			return false;
+		for (int i = 0; i < word.length(); i++) {
+			if (buf[start + i] != word.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private byte parseOp() {
+		int start = pos;
+		while (pos < end && buf[pos] != ':')
+			pos++;
+		if (pos == end)
+			throw new NumberFormatException("missing operands");
+
+		byte result = Calculator.OP_UNKNOWN;
+		if (pos - start == 3) {
+			byte a = buf[start], b = buf[start + 1], c = buf[start + 2];
+			if (a == 'a' && b == 'd' && c == 'd')
+				result = Calculator.OP_ADD;
+			else if (a == 's' && b == 'u' && c == 'b')
+				result = Calculator.OP_SUB;
+			else if (a == 'm' && b == 'u' && c == 'l')
+				result = Calculator.OP_MUL;
+			else if (a == 'd' && b == 'i' && c == 'v')
+				result = Calculator.OP_DIV;
+		}
+		pos++; // skip ':'
+		return result;
+	}
+
+	private int parseInt() {
+		int value = 0;
+		int start = pos;
+		while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+			value = Math.min(value * 10 + (buf[pos] - '0'), Batch.MAX_SIZE + 1);
+			pos++;
+		}
+		if (pos == start || (pos < end && buf[pos] != ':'))
+			throw new NumberFormatException("malformed batch size");
+		pos++; // skip ':'
+		return value;
+	}
+
+	/**
+	 * Parses the number starting at pos, up to the next ':' or the end of the line
+	 */
+	private double parseDouble() {
+		int start = pos;
+		int stop = start;
+		while (stop < end && buf[stop] != ':')
+			stop++;
+		pos = stop + 1;
+
+		int i = start;
+		boolean negative = false;
+		if (i < stop && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exponent = 0;
+		boolean digits = false;
+		boolean exact = true;
+
+		for (; i < stop && buf[i] >= '0' && buf[i] <= '9'; i++) {
+			mantissa = mantissa * 10 + (buf[i] - '0');
+			digits = true;
+			exact &= mantissa < MAX_EXACT_MANTISSA;
+		}
+		if (i < stop && buf[i] == '.') {
+			for (i++; i < stop && buf[i] >= '0' && buf[i] <= '9'; i++) {
+				mantissa = mantissa * 10 + (buf[i] - '0');
+				exponent--;
+				digits = true;
+				exact &= mantissa < MAX_EXACT_MANTISSA;
+			}
+		}
+		if (i < stop && (buf[i] == 'e' || buf[i] == 'E') && digits) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < stop && (buf[i] == '-' || buf[i] == '+')) {
+				negativeExponent = buf[i] == '-';
+				i++;
+			}
+			int value = 0;
+			boolean exponentDigits = false;
+			for (; i < stop && buf[i] >= '0' && buf[i] <= '9'; i++) {
+				value = Math.min(value * 10 + (buf[i] - '0'), 10_000);
+				exponentDigits = true;
+			}
+			exact &= exponentDigits;
+			exponent += negativeExponent ? -value : value;
+		}
+
+		/*
+		 * both the mantissa and the power of ten are exact doubles, so a single
+		 * multiplication or division is correctly rounded
+		 */
+		if (digits && exact && i == stop && exponent >= -22 && exponent <= 22) {
+			double value = mantissa;
+			value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		return Double.parseDouble(new String(buf, start, stop - start, StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,112 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of text answers, shared by every connection. A request such as
+ * add:94.6:7.65 is packed into three longs (requests longer than 24 bytes are
+ * not cached), which are both the key and its hash, and is mapped to the bytes
+ * of its answer, so a repeated request is answered without being parsed,
+ * evaluated or formatted.
+ *
+ * The table is direct-mapped: a new entry evicts whatever was in its slot.
+ * Entries are immutable and published through a plain array, so readers never
+ * lock; at worst they miss an entry that was just written
+ */
+class ResultCache {
+	public static final int MAX_KEY = 24;
+
+	/**
+	 * A cached request and its answer
+	 */
+	static final class Entry {
+		final long k0;
+		final long k1;
+		final long k2;
+		final byte[] answer;
+
+		Entry(long k0, long k1, long k2, byte[] answer) {
+			this.k0 = k0;
+			this.k1 = k1;
+			this.k2 = k2;
+			this.answer = answer;
+		}
+	}
+
+	private final Entry[] table;
+	private final int mask;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param capacity Number of entries, rounded up to a power of two
+	 */
+	public ResultCache(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.table = new Entry[slots];
+		this.mask = slots - 1;
+	}
+
+	/**
+	 * @return The cached answer to the request between start and end, or null
+	 */
+	public byte[] get(byte[] buf, int start, int end) {
+		if (end - start > MAX_KEY)
+			return null;
+
+		long k0 = pack(buf, start, end, 0);
+		long k1 = pack(buf, start, end, 8);
+		long k2 = pack(buf, start, end, 16) ^ (end - start);
+		Entry entry = table[slot(k0, k1, k2)];
+		if (entry != null && entry.k0 == k0 && entry.k1 == k1 && entry.k2 == k2) {
+			hits.increment();
+			return entry.answer;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Caches the answer to the request between start and end
+	 */
+	public void put(byte[] buf, int start, int end, byte[] answer) {
+		if (end - start > MAX_KEY)
+			return;
+
+		long k0 = pack(buf, start, end, 0);
+		long k1 = pack(buf, start, end, 8);
+		long k2 = pack(buf, start, end, 16) ^ (end - start);
+		int slot = slot(k0, k1, k2);
+		if (table[slot] != null)
+			evictions.increment();
+		table[slot] = new Entry(k0, k1, k2, answer);
+	}
+
+	public String stats() {
+		long h = hits.sum();
+		long m = misses.sum();
+		return String.format("cache: %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), evictions.sum());
+	}
+
+	/**
+	 * @return Bytes start+offset .. start+offset+7 of the request as a long,
+	 *         padded with zeros past its end
+	 */
+	private static long pack(byte[] buf, int start, int end, int offset) {
+		long value = 0;
+		for (int i = start + offset, shift = 0; i < end && shift < 64; i++, shift += 8) {
+			value |= (buf[i] & 0xFFL) << shift;
+		}
+		return value;
+	}
+
+	private int slot(long k0, long k1, long k2) {
+		long h = k0 * 0x9E3779B97F4A7C15L;
+		h = (h ^ k1) * 0x9E3779B97F4A7C15L;
+		h = (h ^ k2) * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 40) & mask;
+	}
+}
@@ -0,0 +1,309 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server engine. One thread accepts connections and hands them
+ * round-robin to a fixed set of event loops, each one multiplexing its clients
+ * on its own Selector, so the number of threads doesn't grow with the number of
+ * clients
+ */
+public class SelectorServer {
+	private ServerSocketChannel server;
+	private Selector acceptSelector;
+	private EventLoop[] loops;
+	private int maxConnections;
+	private AtomicInteger connections = new AtomicInteger();
+
+	public SelectorServer(String ipAddress, int port, int backlog, int maxConnections, int workers) throws Exception {
+		this.maxConnections = maxConnections;
+		this.server = ServerSocketChannel.open();
+		this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		this.server.bind(new InetSocketAddress(InetAddress.getByName(ipAddress), port), backlog);
+		this.server.configureBlocking(false);
+		this.acceptSelector = Selector.open();
+		this.server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		this.loops = new EventLoop[workers];
+		for (int i = 0; i < workers; i++) {
+			loops[i] = new EventLoop(connections);
+			Thread thread = new Thread(loops[i], "event-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void listen() throws Exception {
+		int next = 0;
+		while (true) {
+			acceptSelector.select();
+			acceptSelector.selectedKeys().clear();
+
+			SocketChannel client;
+			while ((client = server.accept()) != null) {
+				/*
+				 * refuse clients over the connection limit instead of queueing them
+				 */
+				if (connections.incrementAndGet() > maxConnections) {
+					connections.decrementAndGet();
+					client.close();
+					continue;
+				}
+				loops[next].register(client);
+				next = (next + 1) % loops.length;
+			}
+		}
+	}
+
+	public InetAddress getSocketAddress() throws IOException {
+		return ((InetSocketAddress) this.server.getLocalAddress()).getAddress();
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) this.server.getLocalAddress()).getPort();
+	}
+}
+
+/**
+ * A single selector thread serving the calculator protocol (text or binary)
+ * for every client registered with it
+ */
+class EventLoop implements Runnable {
+	private static final int BUFFER_SIZE = 4096;
+	private static final int MAX_PENDING_OUTPUT = 1 << 20; // bytes
+
+	private Selector selector;
+	private ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+	private AtomicInteger connections;
+
+	public EventLoop(AtomicInteger connections) throws IOException {
+		this.selector = Selector.open();
+		this.connections = connections;
+	}
+
+	/**
+	 * Hands a freshly accepted client to this loop. Called from the accept thread
+	 */
+	public void register(SocketChannel client) {
+		pending.add(client);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				registerPending();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isReadable())
+							read(key);
+						if (key.isValid() && key.isWritable())
+							write(key);
+					} catch (Exception e) {
+						e.printStackTrace();
+						close(key);
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void registerPending() {
+		SocketChannel client;
+		while ((client = pending.poll()) != null) {
+			try {
+				client.configureBlocking(false);
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				client.register(selector, SelectionKey.OP_READ, new ClientState());
+			} catch (IOException e) {
+				e.printStackTrace();
+				connections.decrementAndGet();
+				try {
+					client.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ClientState state = (ClientState) key.attachment();
+
+		int n = channel.read(state.in);
+		if (n < 0) {
+			close(key);
+			return;
+		}
+
+		/*
+		 * answer every complete request, keep the partial one for the next read
+		 */
+		ByteBuffer in = state.in;
+		in.flip();
+		int start = in.position();
+		while (start < in.limit()) {
+			if (state.binary) {
+				int consumed = state.answerBinary(in, start);
+				if (consumed == 0)
+					break;
+				start += consumed;
+				continue;
+			}
+
+			int i = start;
+			while (i < in.limit() && in.get(i) != '\n')
+				i++;
+			if (i == in.limit())
+				break;
+
+			int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+			if (RequestParser.Matches(in.array(), start, end, Calculator.BINARY_HANDSHAKE)) {
+				state.reply(Calculator.BINARY_HANDSHAKE);
+				state.binary = true;
+			} else {
+				state.answerer.answer(in.array(), start, end);
+				state.reserve(state.answerer.length);
+				state.out.put(state.answerer.reply, 0, state.answerer.length);
+			}
+			start = i + 1;
+		}
+		in.position(start);
+		in.compact();
+
+		if (!in.hasRemaining())
+			state.growInput(Calculator.MAX_LINE);
+
+		write(key);
+	}
+
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ClientState state = (ClientState) key.attachment();
+
+		state.out.flip();
+		channel.write(state.out);
+		int pending = state.out.remaining();
+		state.out.compact();
+
+		/*
+		 * only wait for writability while the client is not keeping up, and stop
+		 * reading its requests while it's too far behind on the answers
+		 */
+		if (pending == 0)
+			key.interestOps(SelectionKey.OP_READ);
+		else if (pending > MAX_PENDING_OUTPUT)
+			key.interestOps(SelectionKey.OP_WRITE);
+		else
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Per-client buffers
+	 */
+	static class ClientState {
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		TextAnswerer answerer = new TextAnswerer(ConnectionHandler.CACHE);
+		boolean binary = false;
+
+		void reserve(int needed) {
+			if (out.remaining() < needed) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+		}
+
+		Batch batch = new Batch();
+
+		void reply(String line) {
+			reserve(line.length() + 1);
+			for (int i = 0; i < line.length(); i++) {
+				out.put((byte) line.charAt(i));
+			}
+			out.put((byte) '\n');
+		}
+
+		/**
+		 * Answers the binary frame starting at start, if it has been fully received
+		 *
+		 * @return The number of bytes consumed, or 0 if the frame is incomplete
+		 */
+		int answerBinary(ByteBuffer in, int start) {
+			int available = in.limit() - start;
+			byte op = in.get(start);
+			if (op != Calculator.OP_BATCH) {
+				if (available < Calculator.BINARY_FRAME)
+					return 0;
+				reserve(8);
+				out.putDouble(Calculator.Evaluate(op, in.getDouble(start + 1), in.getDouble(start + 9)));
+				return Calculator.BINARY_FRAME;
+			}
+
+			if (available < 5)
+				return 0;
+			int n = in.getInt(start + 1);
+			if (n < 0 || n > Batch.MAX_SIZE)
+				throw new IllegalArgumentException("batch size out of range: " + n);
+			int length = 5 + n * Calculator.BINARY_FRAME;
+			if (available < length)
+				return 0;
+
+			batch.reset(n);
+			int xs = start + 5 + n;
+			int ys = xs + n * 8;
+			for (int i = 0; i < n; i++) {
+				batch.ops[i] = in.get(start + 5 + i);
+				batch.x[i] = in.getDouble(xs + i * 8);
+				batch.y[i] = in.getDouble(ys + i * 8);
+			}
+			batch.evaluate();
+
+			reserve(n * 8);
+			for (int i = 0; i < n; i++)
+				out.putDouble(batch.results[i]);
+			return length;
+		}
+
+		void growInput(int max) throws IOException {
+			if (in.capacity() >= max)
+				throw new IOException("request line longer than " + max + " bytes");
+
+			ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+	}
+}
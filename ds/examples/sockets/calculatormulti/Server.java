@@ -1,25 +1,37 @@
 package ds.examples.sockets.calculatormulti;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
+	public static int BACKLOG = 50;
+	public static int MAX_CONNECTIONS = 1024;
+	public static int WORKERS = Runtime.getRuntime().availableProcessors();
+	public static boolean NIO = false;
+	public static int CACHE_SIZE = 0;
+
 	private ServerSocket server;
+	private AtomicInteger connections = new AtomicInteger();
 
 	public Server(String ipAddress, int port) throws Exception {
-		this.server = new ServerSocket(port, 1, InetAddress.getByName(ipAddress));
+		this.server = new ServerSocket(port, BACKLOG, InetAddress.getByName(ipAddress));
 	}
 
 	private void listen() throws Exception {
 		while (true) {
 			Socket client = this.server.accept();
+			/*
+			 * refuse clients over the connection limit instead of spawning a thread
+			 */
+			if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+				connections.decrementAndGet();
+				client.close();
+				continue;
+			}
 			String clientAddress = client.getInetAddress().getHostAddress();
-			new Thread(new ConnectionHandler(clientAddress, client)).start();
+			new Thread(new ConnectionHandler(clientAddress, client, connections)).start();
 		}
 	}
 
@@ -31,67 +43,67 @@ public class Server {
 		return this.server.getLocalPort();
 	}
 
-	public static void main(String[] args) throws Exception {
-		Server app = new Server(args[0], Integer.valueOf(args[1]));
-		System.out.printf("\r\nrunning server: host=%s @ port=%d\n",
-				app.getSocketAddress().getHostAddress(), app.getPort());
-		app.listen();
-	}
-}
-
-class ConnectionHandler implements Runnable {
-	String clientAddress;
-	Socket clientSocket;
-
-	public ConnectionHandler(String clientAddress, Socket clientSocket) {
-		this.clientAddress = clientAddress;
-		this.clientSocket = clientSocket;
+	/**
+	 * Reads the optional arguments following [host] [port]:
+	 * --nio, --backlog=N, --max-connections=N, --workers=N and --cache=N
+	 *
+	 * @param args Command line arguments
+	 */
+	public static void ReadOptions(String[] args) {
+		for (int i = 2; i < args.length; i++) {
+			String[] option = args[i].split("=", 2);
+			switch (option[0]) {
+				case "--nio":
+					NIO = true;
+					break;
+				case "--backlog":
+					BACKLOG = Integer.parseInt(option[1]);
+					break;
+				case "--max-connections":
+					MAX_CONNECTIONS = Integer.parseInt(option[1]);
+					break;
+				case "--workers":
+					WORKERS = Integer.parseInt(option[1]);
+					break;
+				case "--cache":
+					CACHE_SIZE = Integer.parseInt(option[1]);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option: " + args[i]);
+			}
+		}
 	}
 
-	@Override
-	public void run() {
-		/*
-		 * prepare socket I/O channels
-		 */
-		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-			while (true) {
-				/*
-				 * receive command
-				 */
-				String command;
-				if ((command = in.readLine()) == null)
-					break;
+	public static void main(String[] args) throws Exception {
+		ReadOptions(args);
 
-				Scanner sc = new Scanner(command).useDelimiter(":");
-				String op = sc.next();
-				double x = Double.parseDouble(sc.next());
-				double y = Double.parseDouble(sc.next());
-				double result = 0.0;
-				switch (op) {
-					case "add":
-						result = x + y;
-						break;
-					case "sub":
-						result = x - y;
-						break;
-					case "mul":
-						result = x * y;
-						break;
-					case "div":
-						result = x / y;
-						break;
+		if (CACHE_SIZE > 0) {
+			ConnectionHandler.CACHE = new ResultCache(CACHE_SIZE);
+			Thread stats = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(10 * 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println(ConnectionHandler.CACHE.stats());
 				}
-				/*
-				 * send result
-				 */
-				out.println(String.valueOf(result));
-				out.flush();
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			});
+			stats.setDaemon(true);
+			stats.start();
 		}
+
+		if (NIO) {
+			SelectorServer app = new SelectorServer(args[0], Integer.valueOf(args[1]), BACKLOG, MAX_CONNECTIONS, WORKERS);
+			System.out.printf("\r\nrunning nio server: host=%s @ port=%d, %d event loops\n",
+					app.getSocketAddress().getHostAddress(), app.getPort(), WORKERS);
+			app.listen();
+			return;
+		}
+
+		Server app = new Server(args[0], Integer.valueOf(args[1]));
+		System.out.printf("\r\nrunning server: host=%s @ port=%d\n",
+				app.getSocketAddress().getHostAddress(), app.getPort());
+		app.listen();
 	}
 }
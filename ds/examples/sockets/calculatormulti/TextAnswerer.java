@@ -0,0 +1,95 @@
+package ds.examples.sockets.calculatormulti;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Answers text requests (single op:x:y lines and batch lines) of a
+ * connection into a reusable reply buffer, going through the shared result
+ * cache when the server runs with one
+ */
+class TextAnswerer {
+	RequestParser parser = new RequestParser();
+	Batch batch = new Batch();
+	ResultCache cache;
+
+	byte[] reply = new byte[256];
+	int length;
+
+	public TextAnswerer(ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Fills reply with the answer to the request line between start and end,
+	 * including the trailing '\n'
+	 */
+	public void answer(byte[] buf, int start, int end) {
+		length = 0;
+		if (!RequestParser.IsBatch(buf, start, end)) {
+			answerOne(buf, start, end);
+		} else if (cache != null) {
+			/*
+			 * look every operation of the batch up on its own, exactly N of them as
+			 * parseBatch would
+			 */
+			int size = parser.parseBatchSize(buf, start, end);
+			int segment = RequestParser.SkipBatchHeader(buf, start, end);
+			int count = 0;
+			while (segment < end && count < size) {
+				int segmentEnd = RequestParser.OperationEnd(buf, segment, end);
+				if (count > 0)
+					append((byte) ':');
+				answerOne(buf, segment, segmentEnd);
+				count++;
+				segment = segmentEnd + 1;
+			}
+			if (count != size)
+				throw new NumberFormatException("missing operands");
+		} else {
+			parser.parseBatch(buf, start, end, batch);
+			batch.evaluate();
+			for (int i = 0; i < batch.size; i++) {
+				if (i > 0)
+					append((byte) ':');
+				append(String.valueOf(batch.results[i]));
+			}
+		}
+		append((byte) '\n');
+	}
+
+	private void answerOne(byte[] buf, int start, int end) {
+		byte[] cached = cache == null ? null : cache.get(buf, start, end);
+		if (cached == null) {
+			parser.parse(buf, start, end);
+			cached = String.valueOf(Calculator.Evaluate(parser.op, parser.x, parser.y))
+					.getBytes(StandardCharsets.US_ASCII);
+			if (cache != null)
+				cache.put(buf, start, end, cached);
+		}
+		append(cached);
+	}
+
+	private void append(String text) {
+		ensure(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			reply[length++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void append(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, reply, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void append(byte b) {
+		ensure(1);
+		reply[length++] = b;
+	}
+
+	private void ensure(int n) {
+		if (length + n > reply.length)
+			reply = Arrays.copyOf(reply, Math.max(reply.length * 2, length + n));
+	}
+}